@@ -7,6 +7,7 @@ import android.util.Log;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 import net.maxbraun.mirror.Air.AirData;
@@ -26,16 +27,36 @@ public class Air extends DataUpdater<AirData> {
    */
   private static final long UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
 
+  /**
+   * The longest time in milliseconds between API calls while the air quality doesn't change.
+   */
+  private static final long MAX_UPDATE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * The host for all AirNow API requests.
+   */
+  private static final String AIR_NOW_HOST = "www.airnowapi.org";
+
   /**
    * The base URL for all AirNow API requests.
    */
-  private static final String AIR_NOW_BASE_URL = "https://www.airnowapi.org";
+  private static final String AIR_NOW_BASE_URL = "https://" + AIR_NOW_HOST;
+
+  /**
+   * The maximum number of AirNow API requests per hour.
+   */
+  private static final int AIR_NOW_HOURLY_QUOTA = 500;
 
   /**
    * The context used to load string resources.
    */
   private final Context context;
 
+  /**
+   * Used to look up icons by name for snapshots.
+   */
+  private final Util util;
+
   /**
    * A {@link Map} from the air quality index category the corresponding drawable resource ID.
    */
@@ -73,11 +94,61 @@ public class Air extends DataUpdater<AirData> {
       this.category = category;
       this.icon = icon;
     }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof AirData)) {
+        return false;
+      }
+      AirData data = (AirData) other;
+      return (aqi == data.aqi)
+          && Objects.equals(category, data.category)
+          && (icon == data.icon);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(aqi, category, icon);
+    }
   }
 
   public Air(Context context, UpdateListener<AirData> updateListener) {
     super(updateListener, UPDATE_INTERVAL_MILLIS);
+    setSkipUnchanged(true);
+    setUpdateIntervalBounds(UPDATE_INTERVAL_MILLIS, MAX_UPDATE_INTERVAL_MILLIS);
+    enableSnapshots(context);
+    enableSchedule("air");
     this.context = context;
+    util = new Util(context);
+    Network.setRequestBudget(context, AIR_NOW_HOST, AIR_NOW_HOURLY_QUOTA,
+        TimeUnit.HOURS.toMillis(1));
+    Network.setRetryPolicy(AIR_NOW_HOST, RetryPolicy.newFastHedged());
+  }
+
+  @Override
+  protected JSONObject toSnapshot(AirData data) throws JSONException {
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("aqi", data.aqi);
+    snapshot.put("category", data.category);
+    snapshot.put("icon", util.getDrawableName(data.icon));
+    return snapshot;
+  }
+
+  @Override
+  protected AirData fromSnapshot(JSONObject snapshot) throws JSONException {
+    int icon = util.getDrawableId(snapshot.getString("icon"));
+    if (icon == 0) {
+      return null;
+    }
+
+    return new AirData(
+        snapshot.getInt("aqi"),
+        snapshot.getString("category"),
+        icon
+    );
   }
 
   @Override
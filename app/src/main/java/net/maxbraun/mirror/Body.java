@@ -3,11 +3,17 @@ package net.maxbraun.mirror;
 import android.app.Activity;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 import net.maxbraun.mirror.Body.BodyMeasure;
@@ -19,13 +25,36 @@ import org.json.JSONObject;
 /**
  * A helper class to regularly retrieve body measurements.
  */
-public class Body extends DataUpdater<BodyMeasure[]> {
+public class Body extends PushDataUpdater<BodyMeasure[]> {
   private static final String TAG = Body.class.getSimpleName();
 
   /**
-   * The time in milliseconds between API calls to update the body measures.
+   * The time in milliseconds between API calls to update the body measures when there are no
+   * notifications about new ones.
+   */
+  private static final long FALLBACK_UPDATE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+  /**
+   * The path to the Firebase Database where a relay writes each notification about new body
+   * measures from the Withings API.
+   */
+  private static final String BODY_NOTIFICATIONS_PATH = "body_notifications";
+
+  /**
+   * The time in milliseconds to wait after a notification, so that the notifications for several
+   * measures from the same weigh-in only cause one update.
+   */
+  private static final long NOTIFICATION_DEBOUNCE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The host for all Withings API requests.
+   */
+  private static final String WITHINGS_HOST = "wbsapi.withings.net";
+
+  /**
+   * The maximum number of Withings API requests per hour, well below the API's rate limit.
    */
-  private static final long UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final int WITHINGS_HOURLY_QUOTA = 60;
 
   /**
    * The activity used to load string resources and access shared preferences.
@@ -76,11 +105,70 @@ public class Body extends DataUpdater<BodyMeasure[]> {
       this.timestamp = timestamp;
       this.weight = weight;
     }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof BodyMeasure)) {
+        return false;
+      }
+      BodyMeasure measure = (BodyMeasure) other;
+      return (timestamp == measure.timestamp) && (Double.compare(weight, measure.weight) == 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(timestamp, weight);
+    }
   }
 
   public Body(Activity activity, UpdateListener<BodyMeasure[]> updateListener) {
-    super(updateListener, UPDATE_INTERVAL_MILLIS);
+    super(updateListener, new FirebaseEventSource(BODY_NOTIFICATIONS_PATH),
+        FALLBACK_UPDATE_INTERVAL_MILLIS);
+    setSkipUnchanged(true);
+    setOffScheduleDelayMillis(NOTIFICATION_DEBOUNCE_MILLIS);
+    enableSnapshots(activity);
+    enableSchedule("body");
     this.activity = activity;
+    Network.setRequestBudget(activity, WITHINGS_HOST, WITHINGS_HOURLY_QUOTA,
+        TimeUnit.HOURS.toMillis(1));
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+
+    // Don't keep the access token fresh while no requests are made.
+    Network.stopOAuthSession(withingsApiData);
+  }
+
+  @Override
+  protected JSONObject toSnapshot(BodyMeasure[] bodyMeasures) throws JSONException {
+    // Store each measure as a compact [timestamp, weight] pair.
+    JSONArray measures = new JSONArray();
+    for (BodyMeasure bodyMeasure : bodyMeasures) {
+      JSONArray measure = new JSONArray();
+      measure.put(bodyMeasure.timestamp);
+      measure.put(bodyMeasure.weight);
+      measures.put(measure);
+    }
+
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("measures", measures);
+    return snapshot;
+  }
+
+  @Override
+  protected BodyMeasure[] fromSnapshot(JSONObject snapshot) throws JSONException {
+    JSONArray measures = snapshot.getJSONArray("measures");
+    BodyMeasure[] bodyMeasures = new BodyMeasure[measures.length()];
+    for (int i = 0; i < measures.length(); i++) {
+      JSONArray measure = measures.getJSONArray(i);
+      bodyMeasures[i] = new BodyMeasure(measure.getLong(0), measure.getDouble(1));
+    }
+    return bodyMeasures;
   }
 
   @Override
@@ -88,74 +176,121 @@ public class Body extends DataUpdater<BodyMeasure[]> {
     // Get the latest data from the Withings API.
     String requestUrl = getRequestUrl();
 
-    // Parse the data we are interested in from the response JSON.
-    try {
-      JSONObject response = Network.getJsonObject(activity, requestUrl, WithingsApi.instance(),
-          withingsApiData);
-      if (response != null) {
-        return parseBodyMeasures(response);
-      } else {
-        return null;
-      }
-    } catch (JSONException e) {
-      Log.e(TAG, "Failed to parse body JSON.", e);
-      return null;
-    }
+    // Parse the data we are interested in from the response JSON while it streams in.
+    return Network.getJson(activity, requestUrl, WithingsApi.instance(), withingsApiData,
+        Body::parseBodyMeasures);
   }
 
   /**
    * Reads the body measure data points from the API response. API documentation:
    * https://developer.withings.com/oauth2/#operation/measure-getmeas
    */
-  private static BodyMeasure[] parseBodyMeasures(JSONObject response) throws JSONException {
-    int status = response.getInt("status");
+  private static BodyMeasure[] parseBodyMeasures(JsonParser parser) throws IOException {
+    expectToken(parser, JsonToken.START_OBJECT);
+
+    // The fields may come in any order, so keep the measures until the status is known.
+    int status = -1;
+    List<BodyMeasure> bodyMeasures = new ArrayList<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("status".equals(field)) {
+        status = parser.getIntValue();
+      } else if ("body".equals(field) && (parser.currentToken() == JsonToken.START_OBJECT)) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String bodyField = parser.getCurrentName();
+          parser.nextToken();
+          if ("measuregrps".equals(bodyField)) {
+            expectToken(parser, JsonToken.START_ARRAY);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+              parseMeasureGroup(parser, bodyMeasures);
+            }
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+
     if (status != 0) {
       Log.e(TAG, "Error status in response: " + status);
       return null;
     }
 
-    JSONObject body = response.getJSONObject("body");
-    JSONArray measureGroups = body.getJSONArray("measuregrps");
+    // Make sure the measures are sorted by ascending timestamp.
+    Collections.sort(bodyMeasures, (lhs, rhs) -> Long.compare(lhs.timestamp, rhs.timestamp));
 
-    // Iterate over all measures in the response.
-    List<BodyMeasure> bodyMeasures = new ArrayList<>();
-    for (int i = 0; i < measureGroups.length(); i++) {
-      JSONObject measureGroup = measureGroups.getJSONObject(i);
-      long date = measureGroup.getLong("date");
-      JSONArray measures = measureGroup.getJSONArray("measures");
-      for (int j = 0; j < measures.length(); j++) {
-        JSONObject measure = measures.getJSONObject(j);
-
-        // We only care about the weight.
-        int type = measure.getInt("type");
-        if (type != 1) {
-          continue;
-        }
+    return bodyMeasures.toArray(new BodyMeasure[bodyMeasures.size()]);
+  }
 
-        // Decode the weight.
-        int value = measure.getInt("value");
-        int unit = measure.getInt("unit");
-        double weight = value * Math.pow(10, unit);
+  /**
+   * Reads the weight measures from the measure group the parser is positioned on and adds them to
+   * the specified list.
+   */
+  private static void parseMeasureGroup(JsonParser parser, List<BodyMeasure> bodyMeasures)
+      throws IOException {
+    long date = 0;
+    List<Double> weights = new ArrayList<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("date".equals(field)) {
+        date = parser.getLongValue();
+      } else if ("measures".equals(field)) {
+        expectToken(parser, JsonToken.START_ARRAY);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          int type = 0;
+          int value = 0;
+          int unit = 0;
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String measureField = parser.getCurrentName();
+            parser.nextToken();
+            if ("type".equals(measureField)) {
+              type = parser.getIntValue();
+            } else if ("value".equals(measureField)) {
+              value = parser.getIntValue();
+            } else if ("unit".equals(measureField)) {
+              unit = parser.getIntValue();
+            } else {
+              parser.skipChildren();
+            }
+          }
 
-        // Add this measure to the list.
-        BodyMeasure bodyMeasure = new BodyMeasure(date, weight);
-        bodyMeasures.add(bodyMeasure);
+          // We only care about the weight.
+          if (type == 1) {
+            weights.add(value * Math.pow(10, unit));
+          }
+        }
+      } else {
+        parser.skipChildren();
       }
     }
 
-    // Make sure the measures are sorted by ascending timestamp.
-    Collections.sort(bodyMeasures, (lhs, rhs) -> Long.compare(lhs.timestamp, rhs.timestamp));
+    // Add the measures to the list.
+    for (double weight : weights) {
+      bodyMeasures.add(new BodyMeasure(date, weight));
+    }
+  }
 
-    return bodyMeasures.toArray(new BodyMeasure[bodyMeasures.size()]);
+  /**
+   * Fails unless the parser is positioned on the specified token.
+   */
+  private static void expectToken(JsonParser parser, JsonToken token) throws IOException {
+    if (parser.currentToken() != token) {
+      throw new JsonParseException(parser, "Expected " + token + ": " + parser.currentToken());
+    }
   }
 
   /**
    * Creates the URL for a Withings API request based on the current time.
    */
   private String getRequestUrl() {
-    return String.format(Locale.US, "https://wbsapi.withings.net/measure" +
+    return String.format(Locale.US, "https://%s/measure" +
         "?action=getmeas" +
         "&startdate=%d",
+        WITHINGS_HOST,
         getStartTimestamp());
   }
 
@@ -0,0 +1,188 @@
+package net.maxbraun.mirror;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of recent request failures for a host, so that requests can fail right away without
+ * network access while the host is down. The breaker opens once too many recent requests failed.
+ * After a while, it lets a single trial request through and closes again if that one succeeds.
+ */
+public class CircuitBreaker {
+  private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+  /**
+   * The number of recent requests that the failure rate is based on.
+   */
+  private static final int WINDOW_SIZE = 10;
+
+  /**
+   * The minimum number of recent requests before the breaker can open.
+   */
+  private static final int MIN_REQUEST_COUNT = 4;
+
+  /**
+   * The fraction of recent requests that have to fail for the breaker to open.
+   */
+  private static final double FAILURE_RATE_THRESHOLD = 0.5;
+
+  /**
+   * The time in milliseconds that the breaker stays open before the first trial request.
+   */
+  private static final long INITIAL_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * The maximum time in milliseconds that the breaker stays open before a trial request. The time
+   * doubles with each failed trial until it reaches this.
+   */
+  private static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  /**
+   * The states of the breaker.
+   */
+  private enum State {
+    /**
+     * Requests are made and their outcomes are counted.
+     */
+    CLOSED,
+
+    /**
+     * Requests fail right away.
+     */
+    OPEN,
+
+    /**
+     * A single trial request is in flight and all others fail right away.
+     */
+    HALF_OPEN
+  }
+
+  /**
+   * The host this breaker is for, used for logging.
+   */
+  private final String host;
+
+  /**
+   * The current state.
+   */
+  private State state = State.CLOSED;
+
+  /**
+   * Whether each of the recent requests failed, used as a ring buffer.
+   */
+  private final boolean[] failures = new boolean[WINDOW_SIZE];
+
+  /**
+   * The number of requests recorded since the breaker last closed.
+   */
+  private int requestCount;
+
+  /**
+   * The time in milliseconds that the breaker stays open the next time it opens.
+   */
+  private long openMillis = INITIAL_OPEN_MILLIS;
+
+  /**
+   * The {@link SystemClock#elapsedRealtime()} time in milliseconds until which the breaker stays
+   * open.
+   */
+  private long openUntilMillis;
+
+  /**
+   * Creates a closed breaker for the specified host.
+   */
+  public CircuitBreaker(String host) {
+    this.host = host;
+  }
+
+  /**
+   * Checks whether a request may be made now. If it may, its outcome has to be reported with
+   * {@link #recordSuccess()}, {@link #recordFailure()} or {@link #release()}.
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (SystemClock.elapsedRealtime() < openUntilMillis) {
+          return false;
+        }
+        Log.d(TAG, "Making trial request: " + host);
+        state = State.HALF_OPEN;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Records a request that reached the host and got a response.
+   */
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      Log.d(TAG, "Closing after successful trial request: " + host);
+      state = State.CLOSED;
+      requestCount = 0;
+      openMillis = INITIAL_OPEN_MILLIS;
+      return;
+    }
+
+    record(false);
+  }
+
+  /**
+   * Records a request that failed to get a response from the host.
+   */
+  public synchronized void recordFailure() {
+    if (state != State.CLOSED) {
+      // Wait longer each time the trial request fails.
+      open();
+      openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+      return;
+    }
+
+    record(true);
+
+    // Open if too many of the recent requests failed.
+    int count = Math.min(requestCount, WINDOW_SIZE);
+    int failureCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (failures[i]) {
+        failureCount++;
+      }
+    }
+    if ((count >= MIN_REQUEST_COUNT) && (failureCount >= count * FAILURE_RATE_THRESHOLD)) {
+      open();
+    }
+  }
+
+  /**
+   * Ends a request without an outcome, e.g. because it was cancelled. If it was the trial request,
+   * the next request becomes the trial instead.
+   */
+  public synchronized void release() {
+    if (state == State.HALF_OPEN) {
+      state = State.OPEN;
+    }
+  }
+
+  /**
+   * Adds the outcome of a request to the recent ones.
+   */
+  private void record(boolean failure) {
+    failures[requestCount % WINDOW_SIZE] = failure;
+    requestCount++;
+  }
+
+  /**
+   * Opens the breaker for the current open duration.
+   */
+  private void open() {
+    Log.w(TAG, String.format("Opening for %d ms: %s", openMillis, host));
+    state = State.OPEN;
+    openUntilMillis = SystemClock.elapsedRealtime() + openMillis;
+    requestCount = 0;
+  }
+}
@@ -1,7 +1,6 @@
 package net.maxbraun.mirror;
 
 import android.content.Context;
-import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -22,6 +21,8 @@ import net.maxbraun.mirror.Commute.CommuteSummary;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +46,29 @@ public class Commute extends DataUpdater<CommuteSummary> {
    */
   private static final long TREND_THRESHOLD_SECONDS = TimeUnit.MINUTES.toSeconds(2);
 
+  /**
+   * The time in milliseconds to wait after a settings change, so that several quick changes only
+   * cause one update.
+   */
+  private static final long SETTINGS_DEBOUNCE_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+  /**
+   * The maximum age in milliseconds of a commute estimate that is still shown when an update fails.
+   * Traffic changes quickly, so this is much shorter than for other data.
+   */
+  private static final long MAX_STALENESS_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  /**
+   * The host for all Google Maps Directions API requests.
+   */
+  private static final String DIRECTIONS_HOST = "maps.googleapis.com";
+
+  /**
+   * The maximum number of Google Maps Directions API requests per day, which keeps the monthly
+   * total within the free usage credit.
+   */
+  private static final int DIRECTIONS_DAILY_QUOTA = 1000;
+
   /**
    * The travel mode using standard driving directions using the road network.
    */
@@ -92,7 +116,7 @@ public class Commute extends DataUpdater<CommuteSummary> {
   private static final String COMMUTE_SETTING_TRAVEL_MODE = "travel_mode";
 
   /**
-   * The context used to load string and drawable resources.
+   * The context used to load string resources.
    */
   private final Context context;
 
@@ -101,6 +125,11 @@ public class Commute extends DataUpdater<CommuteSummary> {
    */
   private final DatabaseReference commuteSettings;
 
+  /**
+   * Used to look up icons by name for snapshots.
+   */
+  private final Util util;
+
   /**
    * The most recent home address.
    */
@@ -145,26 +174,79 @@ public class Commute extends DataUpdater<CommuteSummary> {
     public final String text;
 
     /**
-     * The icon representing the travel mode.
+     * The resource ID of the icon representing the travel mode.
      */
-    public final Drawable travelModeIcon;
+    public final int travelModeIcon;
 
     /**
-     * The icon representing the traffic trend or {@code null} if it is flat.
+     * The resource ID of the icon representing the traffic trend or {@code 0} if it is flat.
      */
-    public final Drawable trafficTrendIcon;
+    public final int trafficTrendIcon;
 
-    public CommuteSummary(String text, Drawable travelModeIcon, Drawable trafficTrendIcon) {
+    public CommuteSummary(String text, int travelModeIcon, int trafficTrendIcon) {
       this.text = text;
       this.travelModeIcon = travelModeIcon;
       this.trafficTrendIcon = trafficTrendIcon;
     }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof CommuteSummary)) {
+        return false;
+      }
+      CommuteSummary summary = (CommuteSummary) other;
+      return Objects.equals(text, summary.text)
+          && (travelModeIcon == summary.travelModeIcon)
+          && (trafficTrendIcon == summary.trafficTrendIcon);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(text, travelModeIcon, trafficTrendIcon);
+    }
   }
 
   public Commute(Context context, UpdateListener<CommuteSummary> updateListener) {
     super(updateListener, UPDATE_INTERVAL_MILLIS);
+    setSkipUnchanged(true);
+    setOffScheduleDelayMillis(SETTINGS_DEBOUNCE_MILLIS);
+    setMaxStalenessMillis(MAX_STALENESS_MILLIS);
+    enableSnapshots(context);
+    enableSchedule("commute");
     this.context = context;
+    util = new Util(context);
     commuteSettings = FirebaseDatabase.getInstance().getReference(COMMUTE_SETTINGS_PATH);
+    Network.setRequestBudget(context, DIRECTIONS_HOST, DIRECTIONS_DAILY_QUOTA,
+        TimeUnit.DAYS.toMillis(1));
+    Network.setRetryPolicy(DIRECTIONS_HOST, RetryPolicy.newFastHedged());
+  }
+
+  @Override
+  protected JSONObject toSnapshot(CommuteSummary summary) throws JSONException {
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("text", summary.text);
+    snapshot.put("travelModeIcon", util.getDrawableName(summary.travelModeIcon));
+    if (summary.trafficTrendIcon != 0) {
+      snapshot.put("trafficTrendIcon", util.getDrawableName(summary.trafficTrendIcon));
+    }
+    return snapshot;
+  }
+
+  @Override
+  protected CommuteSummary fromSnapshot(JSONObject snapshot) throws JSONException {
+    int travelModeIcon = util.getDrawableId(snapshot.getString("travelModeIcon"));
+    if (travelModeIcon == 0) {
+      return null;
+    }
+    int trafficTrendIcon = 0;
+    if (snapshot.has("trafficTrendIcon")) {
+      trafficTrendIcon = util.getDrawableId(snapshot.getString("trafficTrendIcon"));
+    }
+
+    return new CommuteSummary(snapshot.getString("text"), travelModeIcon, trafficTrendIcon);
   }
 
   @Override
@@ -176,15 +258,29 @@ public class Commute extends DataUpdater<CommuteSummary> {
     String nowRequestUrl = getRequestUrl(nowMillis);
     String futureRequestUrl = getRequestUrl(futureMillis);
 
-    // Parse the data we are interested in from the response JSON.
-    try {
-      JSONObject nowResponse = Network.getJsonObject(nowRequestUrl);
-      JSONObject futureResponse = Network.getJsonObject(futureRequestUrl);
-      if ((nowResponse != null) && (futureResponse != null)) {
-        return parseCommuteSummary(nowResponse, futureResponse);
-      } else {
+    // Make both requests in parallel. Parse the data we are interested in from the response JSON.
+    // Show the current duration as soon as it is known and add the traffic trend once the future
+    // duration is known, too.
+    try (RequestGroup requests = new RequestGroup()) {
+      Future<JSONObject> nowRequest = requests.add(() -> Network.getJsonObject(nowRequestUrl));
+      Future<JSONObject> futureRequest =
+          requests.add(() -> Network.getJsonObject(futureRequestUrl));
+
+      JSONObject nowResponse = requests.await(nowRequest);
+      if (nowResponse == null) {
+        return null;
+      }
+      CommuteSummary nowSummary = parseCommuteSummary(nowResponse, null);
+      if (nowSummary == null) {
         return null;
       }
+      publishPartial(nowSummary);
+
+      JSONObject futureResponse = requests.await(futureRequest);
+      if (futureResponse == null) {
+        return null;
+      }
+      return parseCommuteSummary(nowResponse, futureResponse);
     } catch (JSONException e) {
       Log.e(TAG, "Failed to parse directions JSON.", e);
       return null;
@@ -214,12 +310,13 @@ public class Commute extends DataUpdater<CommuteSummary> {
     }
 
     try {
-      return String.format(Locale.US, "https://maps.googleapis.com/maps/api/directions/json" +
+      return String.format(Locale.US, "https://%s/maps/api/directions/json" +
               "?origin=%s" +
               "&destination=%s" +
               "&mode=%s" +
               "&departure_time=%d" +
               "&key=%s",
+          DIRECTIONS_HOST,
           URLEncoder.encode(home, URL_ENCODE_FORMAT),
           URLEncoder.encode(work, URL_ENCODE_FORMAT),
           travelMode,
@@ -232,34 +329,30 @@ public class Commute extends DataUpdater<CommuteSummary> {
   }
 
   /**
-   * Reads the duration in traffic and route summary from the response. API documentation:
+   * Reads the duration in traffic and route summary from the responses. Without the future
+   * response, the traffic trend is left out. API documentation:
    * https://developers.google.com/maps/documentation/directions/intro
    */
-  private CommuteSummary parseCommuteSummary(JSONObject nowResponse, JSONObject futureResponse)
-      throws JSONException {
+  private CommuteSummary parseCommuteSummary(JSONObject nowResponse,
+      @Nullable JSONObject futureResponse) throws JSONException {
     if (travelMode == null) {
       Log.w(TAG, "Missing travel mode.");
       return null;
     }
 
     String nowStatus = nowResponse.getString("status");
-    String futureStatus = futureResponse.getString("status");
-    if (!"OK".equals(nowStatus) || !"OK".equals(futureStatus)) {
-      Log.e(TAG, String.format("Error status in response: %s %s", nowStatus, futureStatus));
+    if (!"OK".equals(nowStatus)) {
+      Log.e(TAG, "Error status in now response: " + nowStatus);
       return null;
     }
 
     // Expect exactly one route.
     JSONArray nowRoutes = nowResponse.getJSONArray("routes");
     JSONObject nowRoute = nowRoutes.getJSONObject(0);
-    JSONArray futureRoutes = futureResponse.getJSONArray("routes");
-    JSONObject futureRoute = futureRoutes.getJSONObject(0);
 
     // Expect exactly one leg.
     JSONArray nowLegs = nowRoute.getJSONArray("legs");
     JSONObject nowLeg = nowLegs.getJSONObject(0);
-    JSONArray futureLegs = futureRoute.getJSONArray("legs");
-    JSONObject futureLeg = futureLegs.getJSONObject(0);
 
     // Get the duration now, with traffic if available.
     JSONObject nowDuration;
@@ -274,19 +367,6 @@ public class Commute extends DataUpdater<CommuteSummary> {
     Log.d(TAG, String.format("Duration now: %s (%s secs) %b", nowDurationText,
         nowDurationSeconds, nowHasTraffic));
 
-    // Get the duration in the future, with traffic if available.
-    JSONObject futureDuration;
-    boolean futureHasTraffic = futureLeg.has("duration_in_traffic");
-    if (futureHasTraffic) {
-      futureDuration = futureLeg.getJSONObject("duration_in_traffic");
-    } else {
-      futureDuration = futureLeg.getJSONObject("duration");
-    }
-    String futureDurationText = futureDuration.getString("text");
-    long futureDurationSeconds = futureDuration.getLong("value");
-    Log.d(TAG, String.format("Duration future: %s (%d secs) %b", futureDurationText,
-        futureDurationSeconds, futureHasTraffic));
-
     // Create the text summary.
     String nowSummaryText = nowRoute.getString("summary");
     Log.d(TAG, "Summary text: " + nowSummaryText);
@@ -298,31 +378,58 @@ public class Commute extends DataUpdater<CommuteSummary> {
     }
 
     // Pick the icon for the travel mode.
-    int travelModeIconResource;
+    int travelModeIcon;
     if (MODE_DRIVING.equals(travelMode)) {
-      travelModeIconResource = R.drawable.driving;
+      travelModeIcon = R.drawable.driving;
     } else if (MODE_TRANSIT.equals(travelMode)) {
-      travelModeIconResource = R.drawable.transit;
+      travelModeIcon = R.drawable.transit;
     } else if (MODE_WALKING.equals(travelMode)) {
-      travelModeIconResource = R.drawable.walking;
+      travelModeIcon = R.drawable.walking;
     } else if (MODE_BICYCLING.equals(travelMode)) {
-      travelModeIconResource = R.drawable.bicycling;
+      travelModeIcon = R.drawable.bicycling;
     } else {
       Log.e(TAG, "Unknown travel mode: " + travelMode);
       return null;
     }
     Log.d(TAG, "Using travel mode: " + travelMode);
-    Drawable travelModeIcon = context.getDrawable(travelModeIconResource);
+
+    if (futureResponse == null) {
+      return new CommuteSummary(text, travelModeIcon, 0);
+    }
+
+    String futureStatus = futureResponse.getString("status");
+    if (!"OK".equals(futureStatus)) {
+      Log.e(TAG, "Error status in future response: " + futureStatus);
+      return null;
+    }
+
+    // Expect exactly one route with exactly one leg.
+    JSONArray futureRoutes = futureResponse.getJSONArray("routes");
+    JSONObject futureRoute = futureRoutes.getJSONObject(0);
+    JSONArray futureLegs = futureRoute.getJSONArray("legs");
+    JSONObject futureLeg = futureLegs.getJSONObject(0);
+
+    // Get the duration in the future, with traffic if available.
+    JSONObject futureDuration;
+    boolean futureHasTraffic = futureLeg.has("duration_in_traffic");
+    if (futureHasTraffic) {
+      futureDuration = futureLeg.getJSONObject("duration_in_traffic");
+    } else {
+      futureDuration = futureLeg.getJSONObject("duration");
+    }
+    String futureDurationText = futureDuration.getString("text");
+    long futureDurationSeconds = futureDuration.getLong("value");
+    Log.d(TAG, String.format("Duration future: %s (%d secs) %b", futureDurationText,
+        futureDurationSeconds, futureHasTraffic));
 
     // Check if there is a significant trend and use the corresponding icon.
-    Drawable trafficTrendIcon;
+    int trafficTrendIcon;
     long trendSeconds = futureDurationSeconds - nowDurationSeconds;
     Log.d(TAG, String.format("Traffic trend: %d secs", trendSeconds));
     if (Math.abs(trendSeconds) >= TREND_THRESHOLD_SECONDS) {
-      int trendIconResource = trendSeconds > 0 ? R.drawable.trend_up : R.drawable.trend_down;
-      trafficTrendIcon = context.getDrawable(trendIconResource);
+      trafficTrendIcon = trendSeconds > 0 ? R.drawable.trend_up : R.drawable.trend_down;
     } else {
-      trafficTrendIcon = null;
+      trafficTrendIcon = 0;
     }
 
     return new CommuteSummary(text, travelModeIcon, trafficTrendIcon);
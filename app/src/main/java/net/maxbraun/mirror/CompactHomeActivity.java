@@ -90,10 +90,10 @@ public class CompactHomeActivity extends Activity {
           if (summary != null) {
             commuteTextView.setText(summary.text);
             commuteTextView.setVisibility(View.VISIBLE);
-            travelModeView.setImageDrawable(summary.travelModeIcon);
+            travelModeView.setImageResource(summary.travelModeIcon);
             travelModeView.setVisibility(View.VISIBLE);
-            if (summary.trafficTrendIcon != null) {
-              trafficTrendView.setImageDrawable(summary.trafficTrendIcon);
+            if (summary.trafficTrendIcon != 0) {
+              trafficTrendView.setImageResource(summary.trafficTrendIcon);
               trafficTrendView.setVisibility(View.VISIBLE);
             } else {
               trafficTrendView.setVisibility(View.GONE);
@@ -201,6 +201,8 @@ public class CompactHomeActivity extends Activity {
     // Body
     bodyView = findViewById(R.id.body);
 
+    Network.installResponseCache(this);
+    Network.prewarm(this);
     util = new Util(this);
     uiSettings = FirebaseDatabase.getInstance().getReference(UI_SETTINGS_PATH);
   }
@@ -221,6 +223,7 @@ public class CompactHomeActivity extends Activity {
     hideCommute();
     hideBody();
 
+    Network.flushResponseCache();
     super.onStop();
   }
 
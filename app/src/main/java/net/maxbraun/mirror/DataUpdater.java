@@ -1,13 +1,32 @@
 package net.maxbraun.mirror;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.AtomicFile;
 import android.util.Log;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An abstract class that continuously queries a data source on a background thread via
@@ -16,17 +35,195 @@ import java.util.concurrent.TimeUnit;
 public abstract class DataUpdater<Data> {
 
   /**
-   * The {@link ScheduledExecutorService} used to query data on a background thread. All requests
-   * are handled sequentially.
+   * The time in milliseconds to wait before the first retry after a failed update.
+   */
+  private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  /**
+   * The fraction of each retry delay that is randomized, so that retries don't all line up.
    */
-  private final ScheduledExecutorService scheduledBackgroundExecutor =
-      Executors.newSingleThreadScheduledExecutor();
+  private static final double RETRY_JITTER = 0.5;
 
   /**
-   * The current task on the {@link #scheduledBackgroundExecutor} or {@code null} if there is none.
+   * The default maximum age in milliseconds of the last successful data, up to which it is still
+   * shown when an update fails.
+   */
+  private static final long DEFAULT_MAX_STALENESS_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+  /**
+   * The default maximum time in milliseconds that {@link #getData()} may take before the update is
+   * considered failed and the fetch is abandoned.
+   */
+  private static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+  /**
+   * The name of the directory within the app's files directory where data snapshots are stored.
+   */
+  private static final String SNAPSHOT_DIRECTORY = "snapshots";
+
+  /**
+   * The snapshot JSON key for the Unix time in milliseconds when the data was retrieved.
+   */
+  private static final String SNAPSHOT_KEY_TIME = "time";
+
+  /**
+   * The snapshot JSON key for the data itself.
+   */
+  private static final String SNAPSHOT_KEY_DATA = "data";
+
+  /**
+   * The {@link Executor} used to handle updates on a background thread from the shared
+   * {@link UpdateScheduler} pool. All tasks are handled sequentially. None of them block while data
+   * is fetched, so the few shared threads stay free for the other updaters.
+   */
+  private final Executor backgroundExecutor = UpdateScheduler.newSequentialExecutor();
+
+  /**
+   * A token for the update that is in flight or {@code null} if there is none. Only accessed on
+   * the {@link #backgroundExecutor}.
+   */
+  private Object inFlightUpdate;
+
+  /**
+   * The updates waiting for the one in flight to finish. Only accessed on the
+   * {@link #backgroundExecutor}.
+   */
+  private final Queue<Runnable> waitingUpdates = new ArrayDeque<>();
+
+  /**
+   * The {@link SystemClock#uptimeMillis()} in milliseconds at which the next regular update is due.
+   * This is the clock that the {@link UpdateScheduler} and the {@link UpdateWatchdog} use, too.
+   */
+  private volatile long nextUpdateDueMillis;
+
+  /**
+   * Guards {@link #fetchId} and {@link #fetchThread}.
+   */
+  private final Object fetchLock = new Object();
+
+  /**
+   * Incremented for each fetch and once it is over, so that a fetch that starts late can tell that
+   * it has already been abandoned.
+   */
+  private int fetchId;
+
+  /**
+   * The thread running the current {@link #getData()} call or {@code null} if there is none.
+   */
+  private Thread fetchThread;
+
+  /**
+   * Whether the {@link UpdateWatchdog} had to restart the updates since the last one completed.
+   */
+  private volatile boolean restarted;
+
+  /**
+   * The current task on the {@link UpdateScheduler} or {@code null} if there is none.
    */
   private ScheduledFuture updateTask;
 
+  /**
+   * Whether the updates are running, i.e. between {@link #start()} and {@link #stop()}.
+   */
+  private volatile boolean running;
+
+  /**
+   * Incremented each time the updates are stopped or restarted, so that an update from before can
+   * tell not to use its data or schedule the next one.
+   */
+  private int generation;
+
+  /**
+   * The number of failed updates since the last successful one. Only accessed on the
+   * {@link #backgroundExecutor}.
+   */
+  private volatile int consecutiveFailures;
+
+  /**
+   * The time in milliseconds until there is more request budget if the last update was over
+   * budget or {@code 0} otherwise. Only accessed on the {@link #backgroundExecutor}.
+   */
+  private long overBudgetDelayMillis;
+
+  /**
+   * Whether to skip updating the listener when the data hasn't changed since the last update.
+   */
+  private volatile boolean skipUnchanged;
+
+  /**
+   * Whether the listener has been updated at least once. Only accessed on the
+   * {@link #backgroundExecutor}.
+   */
+  private boolean hasUpdatedListener;
+
+  /**
+   * The data the listener was last updated with. Only accessed on the {@link #backgroundExecutor}.
+   */
+  private Data lastData;
+
+  /**
+   * Whether partial data was published during the current update. Only accessed on the
+   * {@link #backgroundExecutor}.
+   */
+  private boolean partialPublished;
+
+  /**
+   * The data from the last successful update or {@code null} if there was none. Only accessed on
+   * the {@link #backgroundExecutor}.
+   */
+  private Data lastSuccessfulData;
+
+  /**
+   * The Unix time in milliseconds of the last successful update. Only accessed on the
+   * {@link #backgroundExecutor}.
+   */
+  private volatile long lastSuccessfulTimeMillis;
+
+  /**
+   * The Unix time in milliseconds of the snapshot on disk or {@code 0} if there is none. Only
+   * accessed on the {@link #backgroundExecutor}.
+   */
+  private long snapshotTimeMillis;
+
+  /**
+   * The maximum age in milliseconds of the last successful data, up to which it is still used when
+   * an update fails.
+   */
+  private volatile long maxStalenessMillis = DEFAULT_MAX_STALENESS_MILLIS;
+
+  /**
+   * The file with the snapshot of the last successful data or {@code null} if snapshots are
+   * disabled.
+   */
+  private volatile AtomicFile snapshotFile;
+
+  /**
+   * The times of day during which updates are active or {@code null} if they always are.
+   */
+  private volatile UpdateSchedule schedule;
+
+  /**
+   * The maximum time in milliseconds that {@link #getData()} may take.
+   */
+  private volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+  /**
+   * Whether an off-schedule update has been requested, but not started yet.
+   */
+  private final AtomicBoolean offScheduleUpdatePending = new AtomicBoolean();
+
+  /**
+   * The delayed off-schedule update on the {@link UpdateScheduler} or {@code null} if there is
+   * none.
+   */
+  private volatile ScheduledFuture offScheduleTask;
+
+  /**
+   * The time in milliseconds to wait before an off-schedule update, during which further requests
+   * are merged into the same update.
+   */
+  private volatile long offScheduleDelayMillis;
+
   /**
    * A {@link Handler} on the main thread.
    */
@@ -38,9 +235,20 @@ public abstract class DataUpdater<Data> {
   private final UpdateListener<Data> updateListener;
 
   /**
-   * The time in milliseconds between each update.
+   * The time in milliseconds between each update. Only accessed on the {@link #backgroundExecutor}
+   * after construction.
+   */
+  private long updateIntervalMillis;
+
+  /**
+   * The shortest time in milliseconds between each update when adapting the interval.
    */
-  private final long updateIntervalMillis;
+  private volatile long minUpdateIntervalMillis;
+
+  /**
+   * The longest time in milliseconds between each update when adapting the interval.
+   */
+  private volatile long maxUpdateIntervalMillis;
 
   /**
    * The generic interface used for data updates.
@@ -53,6 +261,17 @@ public abstract class DataUpdater<Data> {
      * @param data The latest {@link Data} or {@code null} if there was an error.
      */
     void onUpdate(Data data);
+
+    /**
+     * Called instead of {@link #onUpdate(Data)} when the latest update failed, but the data from an
+     * earlier update is still recent enough to use. By default, the data is treated like new data.
+     *
+     * @param data The {@link Data} from the last successful update.
+     * @param ageMillis The time in milliseconds since the last successful update.
+     */
+    default void onStaleUpdate(Data data, long ageMillis) {
+      onUpdate(data);
+    }
   }
 
   /**
@@ -66,57 +285,639 @@ public abstract class DataUpdater<Data> {
 
     this.updateListener = updateListener;
     this.updateIntervalMillis = updateIntervalMillis;
+    this.minUpdateIntervalMillis = updateIntervalMillis;
+    this.maxUpdateIntervalMillis = updateIntervalMillis;
   }
 
   /**
    * Starts the regular background updates.
    */
-  public void start() {
+  public synchronized void start() {
     Log.d(getTag(), "Starting.");
+    running = true;
+
+    // Show the data from the snapshot, if any, while the first update is in progress.
+    backgroundExecutor.execute(() -> restoreSnapshot());
 
-    // Remember the task so we can cancel it later.
-    updateTask = scheduledBackgroundExecutor.scheduleAtFixedRate(() -> update(),
-        0, updateIntervalMillis, TimeUnit.MILLISECONDS);
+    scheduleUpdate(generation, 0);
+
+    if (schedule != null) {
+      schedule.start();
+    }
+    UpdateWatchdog.register(this);
   }
 
   /**
    * Stops the regular background updates.
    */
-  public void stop() {
+  public synchronized void stop() {
     Log.d(getTag(), "Stopping.");
+    running = false;
+
+    UpdateWatchdog.unregister(this);
+    if (schedule != null) {
+      schedule.stop();
+    }
+
+    // Make sure any update that is already running doesn't schedule another one.
+    generation++;
+
+    // If there is a pending task, cancel it while allowing a running one to finish.
+    if (updateTask != null) {
+      updateTask.cancel(false);
+      updateTask = null;
+    }
+    ScheduledFuture offScheduleTask = this.offScheduleTask;
+    if (offScheduleTask != null) {
+      offScheduleTask.cancel(false);
+      this.offScheduleTask = null;
+    }
+    offScheduleUpdatePending.set(false);
+
+    // Drop any listener calls that haven't run yet, so nothing holds on to the listener and what it
+    // references, like an activity.
+    mainHandler.removeCallbacksAndMessages(null);
+
+    // Since those calls may have been dropped, don't assume the listener has the last data when the
+    // updates start again. An update still in flight drops its data, since the generation changed,
+    // and those waiting for it aren't needed anymore.
+    backgroundExecutor.execute(() -> {
+      hasUpdatedListener = false;
+      lastData = null;
+      waitingUpdates.clear();
+    });
+  }
+
+  /**
+   * Schedules the next regular update after the specified delay, unless the updates have been
+   * stopped since the specified generation.
+   */
+  private synchronized void scheduleUpdate(int generation, long delayMillis) {
+    if (generation != this.generation) {
+      return;
+    }
 
-    // If there is a running task, cancel any repetition while allowing the current one to finish.
+    // Remember the task so we can cancel it later. The shared scheduler only triggers the update,
+    // which then runs in order with any other updates of this instance.
+    nextUpdateDueMillis = SystemClock.uptimeMillis() + delayMillis;
+    updateTask = UpdateScheduler.scheduleAligned(
+        () -> backgroundExecutor.execute(() -> scheduledUpdate(generation)), delayMillis);
+  }
+
+  /**
+   * Performs a regular update and schedules the next one depending on whether it succeeded.
+   */
+  private void scheduledUpdate(int generation) {
+    update(generation, () -> {
+      // An outdated update says nothing about whether the restart helped.
+      if (!isCurrentGeneration(generation)) {
+        return;
+      }
+      restarted = false;
+
+      long delayMillis = getScheduledDelayMillis();
+      Log.d(getTag(), String.format("Next update in %d ms.", delayMillis));
+      scheduleUpdate(generation, delayMillis);
+    });
+  }
+
+  /**
+   * Starts over with an immediate update, abandoning any update that is stuck. Used by the
+   * {@link UpdateWatchdog}.
+   */
+  synchronized void restart() {
+    Log.w(getTag(), "Restarting.");
+
+    // Make sure the stuck update, should it ever finish, doesn't schedule another one.
+    generation++;
     if (updateTask != null) {
       updateTask.cancel(false);
       updateTask = null;
     }
+    ScheduledFuture offScheduleTask = this.offScheduleTask;
+    if (offScheduleTask != null) {
+      offScheduleTask.cancel(false);
+      this.offScheduleTask = null;
+    }
+    // A pending off-schedule update may be waiting for the stuck one and never start.
+    offScheduleUpdatePending.set(false);
+
+    restarted = true;
+    backgroundExecutor.execute(() -> {
+      inFlightUpdate = null;
+      waitingUpdates.clear();
+      endFetch();
+    });
+    scheduleUpdate(generation, 0);
   }
 
   /**
-   * Performs the update by retrieving the data and updating the listener.
+   * Returns whether the regular update is overdue by more than the deadline plus the specified
+   * grace period in milliseconds, meaning that the updates are stuck.
    */
-  private void update() {
+  boolean isOverdue(long graceMillis) {
+    long overdueMillis = SystemClock.uptimeMillis() - nextUpdateDueMillis;
+    return overdueMillis > deadlineMillis + graceMillis;
+  }
+
+  /**
+   * Creates a one-line, human-readable summary of the state of the updates.
+   */
+  String getHealthSummary() {
+    StringBuilder summary = new StringBuilder(getTag()).append(": ");
+    if (restarted) {
+      summary.append("restarted");
+    } else if (consecutiveFailures > 0) {
+      summary.append(consecutiveFailures).append(" failure(s)");
+    } else {
+      summary.append("OK");
+    }
+
+    long lastSuccessfulTimeMillis = this.lastSuccessfulTimeMillis;
+    if (lastSuccessfulTimeMillis > 0) {
+      long ageMinutes =
+          TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - lastSuccessfulTimeMillis);
+      summary.append(", updated ").append(ageMinutes).append(" min ago");
+    } else {
+      summary.append(", never updated");
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Moves the pending regular update, if there is one, according to a changed schedule. The time
+   * left until it is kept, as adjusted by the new schedule, unless a full interval under the new
+   * schedule would be shorter.
+   */
+  private synchronized void reschedulePendingUpdate() {
+    // Leave any update that has already been triggered alone. It schedules the next one itself.
+    if ((updateTask == null) || !updateTask.cancel(false)) {
+      return;
+    }
+
+    // Keep the time already waited, but don't wait longer than a full interval would take now.
+    long remainingMillis = Math.max(nextUpdateDueMillis - SystemClock.uptimeMillis(), 0);
+    UpdateSchedule schedule = this.schedule;
+    if (schedule != null) {
+      remainingMillis = schedule.adjustDelayMillis(remainingMillis);
+    }
+    long delayMillis = Math.min(remainingMillis, getScheduledDelayMillis());
+    Log.d(getTag(), String.format("Rescheduled next update in %d ms.", delayMillis));
+    scheduleUpdate(generation, delayMillis);
+  }
+
+  /**
+   * Calculates the time until the next regular update, including any adjustment for the schedule.
+   */
+  private long getScheduledDelayMillis() {
+    long delayMillis = getNextDelayMillis();
+    UpdateSchedule schedule = this.schedule;
+    if (schedule != null) {
+      delayMillis = schedule.adjustDelayMillis(delayMillis);
+    }
+    return delayMillis;
+  }
+
+  /**
+   * Calculates the time until the next regular update. That is the update interval after a
+   * successful update, an exponentially increasing delay with jitter after a failed one or the time
+   * until there is more budget after one that was over budget.
+   */
+  private long getNextDelayMillis() {
+    if (overBudgetDelayMillis > 0) {
+      return overBudgetDelayMillis;
+    }
+    if (consecutiveFailures == 0) {
+      return updateIntervalMillis;
+    }
+
+    // Double the delay for each failure, but never wait longer than the regular interval.
+    long delayMillis = INITIAL_RETRY_DELAY_MILLIS << Math.min(consecutiveFailures - 1, 30);
+    delayMillis = Math.min(delayMillis, updateIntervalMillis);
+
+    // Randomize part of the delay.
+    double jitter = 1 - RETRY_JITTER * ThreadLocalRandom.current().nextDouble();
+    return Math.round(delayMillis * jitter);
+  }
+
+  /**
+   * Starts an update, which retrieves the data and updates the listener, unless the updates have
+   * been stopped or restarted since the specified generation by the time the data is there. The
+   * data is fetched without blocking the {@link #backgroundExecutor}, which then runs the specified
+   * callback once the update is done. If another update is in flight, this one waits for it.
+   */
+  private void update(int generation, Runnable onDone) {
+    if (inFlightUpdate != null) {
+      waitingUpdates.add(() -> update(generation, onDone));
+      return;
+    }
+    final Object update = new Object();
+    inFlightUpdate = update;
     Log.d(getTag(), "Updating...");
 
-    final Data data = getData();
-    mainHandler.post(() -> updateListener.onUpdate(data));
+    partialPublished = false;
+    overBudgetDelayMillis = 0;
+    Futures.addCallback(fetchDataWithDeadline(), new FutureCallback<Data>() {
+      @Override
+      public void onSuccess(Data data) {
+        finishUpdate(update, generation, data, onDone);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof TimeoutException) {
+          Log.e(getTag(), "Update timed out after " + deadlineMillis + " ms.");
+        } else if (t instanceof OverBudgetException) {
+          overBudgetDelayMillis = ((OverBudgetException) t).getRetryAfterMillis();
+          Log.w(getTag(), String.format("Over budget for %d ms.", overBudgetDelayMillis));
+        } else {
+          Log.e(getTag(), "Update threw an exception.", t);
+        }
+        finishUpdate(update, generation, null, onDone);
+      }
+    }, backgroundExecutor);
+  }
+
+  /**
+   * Completes the specified update with the fetched data, runs its callback and starts the next
+   * waiting update, if any. Does nothing if the update has been abandoned by {@link #restart()}.
+   */
+  private void finishUpdate(Object update, int generation, Data data, Runnable onDone) {
+    if (update != inFlightUpdate) {
+      return;
+    }
+    inFlightUpdate = null;
+
+    // Make sure an abandoned fetch can no longer publish partial data.
+    endFetch();
+
+    applyUpdate(generation, data);
+    onDone.run();
+
+    Runnable waitingUpdate = waitingUpdates.poll();
+    if (waitingUpdate != null) {
+      waitingUpdate.run();
+    }
+  }
+
+  /**
+   * Updates the listener with the fetched data, or with stale or no data if there is none, unless
+   * the updates have been stopped or restarted since the specified generation.
+   */
+  private void applyUpdate(int generation, final Data data) {
+    if (!isCurrentGeneration(generation)) {
+      Log.d(getTag(), "Dropping outdated update.");
+      return;
+    }
+
+    // Running out of budget isn't a failure, so keep showing what is there until there is more.
+    if ((data == null) && (overBudgetDelayMillis > 0)) {
+      return;
+    }
+
+    long nowMillis = System.currentTimeMillis();
+    if (data != null) {
+      consecutiveFailures = 0;
+      Data previousData = lastSuccessfulData;
+      adaptUpdateInterval(previousData, data);
+      lastSuccessfulData = data;
+      lastSuccessfulTimeMillis = nowMillis;
+      notifyListener(data, () -> updateListener.onUpdate(data));
+
+      // Rewriting unchanged data only moves its time forward, which matters only before the
+      // snapshot gets too old to be restored.
+      if (!Objects.deepEquals(previousData, data)
+          || (nowMillis - snapshotTimeMillis > maxStalenessMillis / 2)) {
+        saveSnapshot(data, nowMillis);
+      }
+      return;
+    }
+
+    consecutiveFailures++;
+    Log.w(getTag(), "Update failed " + consecutiveFailures + " time(s) in a row.");
+
+    // Keep showing the last successful data for a while instead of nothing.
+    final Data staleData = lastSuccessfulData;
+    final long ageMillis = nowMillis - lastSuccessfulTimeMillis;
+    if ((staleData != null) && (ageMillis <= maxStalenessMillis)) {
+      Log.d(getTag(), String.format("Using stale data from %d ms ago.", ageMillis));
+      notifyListener(staleData, () -> updateListener.onStaleUpdate(staleData, ageMillis));
+    } else if (partialPublished) {
+      // Keep showing the partial data from this update rather than nothing.
+      Log.d(getTag(), "Keeping partial data.");
+    } else {
+      notifyListener(null, () -> updateListener.onUpdate(null));
+    }
+  }
+
+  /**
+   * @return the current generation of the updates.
+   */
+  private synchronized int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Returns whether the updates haven't been stopped or restarted since the specified generation.
+   */
+  private synchronized boolean isCurrentGeneration(int generation) {
+    return generation == this.generation;
+  }
+
+  /**
+   * Updates the listener with partial data while {@link #getData()} is still waiting for the rest,
+   * so that something is shown early. Only used when there has been no successful update yet,
+   * since it shouldn't replace more complete data. Call this from {@link #getData()}.
+   */
+  protected void publishPartial(final Data partialData) {
+    if (partialData == null) {
+      return;
+    }
+    final int fetchId;
+    synchronized (fetchLock) {
+      if (Thread.currentThread() != fetchThread) {
+        return;
+      }
+      fetchId = this.fetchId;
+    }
+
+    // Hand the data over to the background executor, unless the fetch is over by the time it runs.
+    backgroundExecutor.execute(() -> {
+      synchronized (fetchLock) {
+        if (fetchId != this.fetchId) {
+          return;
+        }
+      }
+      // Earlier data, even from a snapshot, is more complete and is shown again after a restart.
+      if (lastSuccessfulData != null) {
+        return;
+      }
+
+      Log.d(getTag(), "Publishing partial data.");
+      partialPublished = true;
+      notifyListener(partialData, () -> updateListener.onUpdate(partialData));
+    });
+  }
+
+  /**
+   * Loads the snapshot of the last successful data from disk and updates the listener with it, if
+   * there is no newer data in memory and it is recent enough.
+   */
+  private void restoreSnapshot() {
+    AtomicFile snapshotFile = this.snapshotFile;
+    if ((snapshotFile == null) || (lastSuccessfulData != null)
+        || !snapshotFile.getBaseFile().exists()) {
+      return;
+    }
+
+    try {
+      JSONObject snapshot =
+          new JSONObject(new String(snapshotFile.readFully(), StandardCharsets.UTF_8));
+      long timeMillis = snapshot.getLong(SNAPSHOT_KEY_TIME);
+      final Data data = fromSnapshot(snapshot.getJSONObject(SNAPSHOT_KEY_DATA));
+      final long ageMillis = System.currentTimeMillis() - timeMillis;
+      if ((data == null) || (ageMillis > maxStalenessMillis)) {
+        Log.d(getTag(), "Ignoring snapshot.");
+        return;
+      }
+
+      Log.d(getTag(), String.format("Using snapshot from %d ms ago.", ageMillis));
+      lastSuccessfulData = data;
+      lastSuccessfulTimeMillis = timeMillis;
+      snapshotTimeMillis = timeMillis;
+      notifyListener(data, () -> updateListener.onStaleUpdate(data, ageMillis));
+    } catch (IOException | JSONException e) {
+      Log.e(getTag(), "Failed to restore snapshot.", e);
+    }
+  }
+
+  /**
+   * Saves a snapshot of the specified data to disk, if snapshots are enabled.
+   */
+  private void saveSnapshot(Data data, long timeMillis) {
+    AtomicFile snapshotFile = this.snapshotFile;
+    if (snapshotFile == null) {
+      return;
+    }
+
+    FileOutputStream outputStream = null;
+    try {
+      JSONObject snapshotData = toSnapshot(data);
+      if (snapshotData == null) {
+        return;
+      }
+      JSONObject snapshot = new JSONObject();
+      snapshot.put(SNAPSHOT_KEY_TIME, timeMillis);
+      snapshot.put(SNAPSHOT_KEY_DATA, snapshotData);
+
+      snapshotFile.getBaseFile().getParentFile().mkdirs();
+      outputStream = snapshotFile.startWrite();
+      outputStream.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+      snapshotFile.finishWrite(outputStream);
+      snapshotTimeMillis = timeMillis;
+    } catch (IOException | JSONException e) {
+      Log.e(getTag(), "Failed to save snapshot.", e);
+      if (outputStream != null) {
+        snapshotFile.failWrite(outputStream);
+      }
+    }
+  }
+
+  /**
+   * Calls {@link #getData()} on a fetch thread and returns its future result. If it takes longer
+   * than the deadline, the fetch is interrupted and abandoned and the result fails with a
+   * {@link TimeoutException}, so that a hanging request can't stall the updates.
+   */
+  private ListenableFuture<Data> fetchDataWithDeadline() {
+    final int fetchId;
+    synchronized (fetchLock) {
+      fetchId = ++this.fetchId;
+    }
+    ListenableFuture<Data> fetch = UpdateScheduler.getFetchExecutor().submit(() -> {
+      synchronized (fetchLock) {
+        if (fetchId != this.fetchId) {
+          return null;
+        }
+        fetchThread = Thread.currentThread();
+      }
+      return getData();
+    });
+
+    // The timer only cancels the fetch, so it never holds up the shared threads.
+    return Futures.withTimeout(fetch, deadlineMillis, TimeUnit.MILLISECONDS,
+        UpdateScheduler.getScheduledExecutor());
+  }
+
+  /**
+   * Marks the current fetch as over, so that it can no longer publish partial data.
+   */
+  private void endFetch() {
+    synchronized (fetchLock) {
+      fetchId++;
+      fetchThread = null;
+    }
+  }
+
+  /**
+   * Halves the update interval if the data changed since the last successful update and doubles it
+   * if it didn't, within the bounds set by {@link #setUpdateIntervalBounds(long, long)}. That way,
+   * requests are spent where the data actually changes.
+   */
+  private void adaptUpdateInterval(Data previousData, Data data) {
+    long minMillis = minUpdateIntervalMillis;
+    long maxMillis = maxUpdateIntervalMillis;
+    if ((previousData == null) || (minMillis == maxMillis)) {
+      return;
+    }
+
+    long intervalMillis;
+    if (Objects.deepEquals(previousData, data)) {
+      intervalMillis = Math.min(updateIntervalMillis * 2, maxMillis);
+    } else {
+      intervalMillis = Math.max(updateIntervalMillis / 2, minMillis);
+    }
+    if (intervalMillis != updateIntervalMillis) {
+      Log.d(getTag(), String.format("Update interval: %d ms", intervalMillis));
+      updateIntervalMillis = intervalMillis;
+    }
+  }
+
+  /**
+   * Runs the specified listener call on the main thread, unless it would pass the same data as the
+   * last one and unchanged updates are skipped.
+   */
+  private void notifyListener(Data data, Runnable listenerCall) {
+    // Avoid redundant work on the main thread if nothing changed. Arrays are compared by content.
+    if (skipUnchanged && hasUpdatedListener && Objects.deepEquals(data, lastData)) {
+      Log.d(getTag(), "Unchanged.");
+      return;
+    }
+    hasUpdatedListener = true;
+    lastData = data;
+
+    // The updates may have been stopped by the time this runs on the main thread.
+    mainHandler.post(() -> {
+      if (running) {
+        listenerCall.run();
+      }
+    });
     Log.d(getTag(), "Updated.");
   }
 
   /**
-   * Triggers an off-schedule update now without altering the schedule.
+   * Enables saving the last successful data to disk, so that it can be shown right away the next
+   * time the updates are started, even after a restart. Requires {@link #toSnapshot(Object)} and
+   * {@link #fromSnapshot(JSONObject)}.
+   */
+  protected void enableSnapshots(Context context) {
+    File directory = new File(context.getFilesDir(), SNAPSHOT_DIRECTORY);
+    snapshotFile = new AtomicFile(new File(directory, getTag() + ".json"));
+  }
+
+  /**
+   * Lets the update interval adapt between the specified bounds in milliseconds, depending on how
+   * often the data changes. The interval starts at the one passed to the constructor and is halved
+   * or doubled, so the bounds should be power-of-two multiples of it.
+   */
+  protected void setUpdateIntervalBounds(long minUpdateIntervalMillis,
+                                         long maxUpdateIntervalMillis) {
+    this.minUpdateIntervalMillis = minUpdateIntervalMillis;
+    this.maxUpdateIntervalMillis = maxUpdateIntervalMillis;
+  }
+
+  /**
+   * Enables the times of day during which updates are active from the Firebase Database schedule
+   * with the specified name. Outside of them, updates are paused or less frequent.
+   */
+  protected void enableSchedule(String name) {
+    schedule = new UpdateSchedule(name, getTag(),
+        () -> backgroundExecutor.execute(() -> reschedulePendingUpdate()));
+  }
+
+  /**
+   * Sets the maximum time in milliseconds that {@link #getData()} may take before the update is
+   * abandoned and treated as failed.
+   */
+  protected void setDeadlineMillis(long deadlineMillis) {
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Sets the maximum age in milliseconds of the last successful data, up to which it is passed to
+   * {@link UpdateListener#onStaleUpdate(Object, long)} when an update fails.
+   */
+  protected void setMaxStalenessMillis(long maxStalenessMillis) {
+    this.maxStalenessMillis = maxStalenessMillis;
+  }
+
+  /**
+   * Sets whether to skip updating the listener when the data is equal to the data from the last
+   * update. The {@link Data} class needs to implement {@link Object#equals(Object)} for this.
+   */
+  protected void setSkipUnchanged(boolean skipUnchanged) {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  /**
+   * Triggers an off-schedule update now without altering the schedule. Multiple requests before the
+   * update starts result in a single update.
    */
   public void updateNow() {
+    if (!running) {
+      Log.d(getTag(), "Ignoring off-schedule update while stopped.");
+      return;
+    }
+    if (!offScheduleUpdatePending.compareAndSet(false, true)) {
+      Log.d(getTag(), "Off-schedule update already pending.");
+      return;
+    }
     Log.d(getTag(), "Off-schedule update.");
 
-    scheduledBackgroundExecutor.execute(() -> update());
+    // Clear the pending flag only once the update starts, so that a request during a running update
+    // still results in one more update afterwards.
+    Runnable offScheduleUpdate = () -> backgroundExecutor.execute(() -> {
+      offScheduleUpdatePending.set(false);
+      if (running) {
+        update(getGeneration(), () -> {});
+      }
+    });
+    if (offScheduleDelayMillis > 0) {
+      offScheduleTask = UpdateScheduler.getScheduledExecutor().schedule(offScheduleUpdate,
+          offScheduleDelayMillis, TimeUnit.MILLISECONDS);
+    } else {
+      offScheduleUpdate.run();
+    }
+  }
+
+  /**
+   * Sets the time in milliseconds that {@link #updateNow()} waits before updating, to merge bursts
+   * of requests into a single update.
+   */
+  protected void setOffScheduleDelayMillis(long offScheduleDelayMillis) {
+    this.offScheduleDelayMillis = offScheduleDelayMillis;
   }
 
   /**
-   * Implement this to query the data source and return a {@link Data} instance or {@code null}.
+   * Implement this to query the data source and return a {@link Data} instance or {@code null}. It
+   * runs on a separate fetch thread, which is interrupted when the deadline passes.
    */
   protected abstract Data getData();
 
+  /**
+   * Override this to convert {@link Data} to JSON for a snapshot or return {@code null} to skip it.
+   */
+  protected JSONObject toSnapshot(Data data) throws JSONException {
+    return null;
+  }
+
+  /**
+   * Override this to convert the JSON from a snapshot back to {@link Data} or return {@code null}
+   * if it can't be used.
+   */
+  protected Data fromSnapshot(JSONObject snapshot) throws JSONException {
+    return null;
+  }
+
   /**
    * Implement this to provide a tag for logging.
    */
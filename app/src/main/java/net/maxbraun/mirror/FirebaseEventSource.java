@@ -0,0 +1,73 @@
+package net.maxbraun.mirror;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * A {@link PushDataUpdater.EventSource} with an event each time the value at a path in the Firebase
+ * Database changes, e.g. when a relay writes the time of the latest notification from an API.
+ */
+public class FirebaseEventSource implements PushDataUpdater.EventSource {
+  private static final String TAG = FirebaseEventSource.class.getSimpleName();
+
+  /**
+   * A reference to the Firebase Database path with the events.
+   */
+  private final DatabaseReference events;
+
+  /**
+   * The listener called on each event or {@code null} if there is no subscription.
+   */
+  private Runnable eventListener;
+
+  /**
+   * Whether the initial value, which is delivered right after subscribing, has been received.
+   */
+  private boolean receivedInitialValue;
+
+  /**
+   * The listener for Firebase Database event updates.
+   */
+  private final ValueEventListener eventsListener = new ValueEventListener() {
+    @Override
+    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+      // The initial value is not an event. The updater polls once when it starts anyway.
+      if (!receivedInitialValue) {
+        receivedInitialValue = true;
+        return;
+      }
+
+      if (eventListener != null) {
+        eventListener.run();
+      }
+    }
+
+    @Override
+    public void onCancelled(@NonNull DatabaseError databaseError) {
+      Log.e(TAG, "Failed to load events.", databaseError.toException());
+    }
+  };
+
+  public FirebaseEventSource(String path) {
+    events = FirebaseDatabase.getInstance().getReference(path);
+  }
+
+  @Override
+  public void subscribe(Runnable eventListener) {
+    this.eventListener = eventListener;
+    receivedInitialValue = false;
+    events.addValueEventListener(eventsListener);
+  }
+
+  @Override
+  public void unsubscribe() {
+    events.removeEventListener(eventsListener);
+    eventListener = null;
+  }
+}
@@ -3,8 +3,11 @@ package net.maxbraun.mirror;
 import android.location.Location;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
 
 /**
  * A helper class to look up location by IP.
@@ -20,43 +23,64 @@ public abstract class GeoLocation {
   /**
    * The location cached at the last request. Assumed to be static.
    */
-  private static Location cachedLocation;
+  private static volatile Location cachedLocation;
 
   /**
    * Makes a request to the geo location API and returns the current location or {@code null} on
-   * error. Uses an in memory cache after the first request.
+   * error. Uses an in memory cache after the first request. Concurrent first requests share one
+   * network request.
    */
   public static Location getLocation() {
     // Always use the cache, if possible.
-    if (cachedLocation != null) {
-      return cachedLocation;
+    Location location = cachedLocation;
+    if (location != null) {
+      return location;
     }
 
     // We're using geo location by IP, because many headless Android devices don't return anything
     // useful through the usual location APIs.
-    String response = Network.get(GEO_IP_URL);
-    if (response == null) {
-      Log.e(TAG, "Empty response.");
+    location = Network.getJson(GEO_IP_URL, GeoLocation::parseLocation);
+    if (location == null) {
+      Log.e(TAG, "No location in response.");
       return null;
     }
+    Log.d(TAG, "Using location: " + location);
 
-    // Parse the latitude and longitude from the response JSON.
-    try {
-      JSONObject responseJson = new JSONObject(response);
-      double latitude = responseJson.getDouble("lat");
-      double longitude = responseJson.getDouble("lon");
-      Location location = new Location("");
-      location.setLatitude(latitude);
-      location.setLongitude(longitude);
-      Log.d(TAG, "Using location: " + location);
+    // Populate the cache.
+    cachedLocation = location;
 
-      // Populate the cache.
-      cachedLocation = location;
+    return location;
+  }
 
-      return location;
-    } catch (JSONException e) {
-      Log.e(TAG, "Failed to parse geo location JSON.");
+  /**
+   * Parses the latitude and longitude from the response JSON.
+   */
+  private static Location parseLocation(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      throw new JsonParseException(parser, "Expected object: " + parser.currentToken());
+    }
+
+    Double latitude = null;
+    Double longitude = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("lat".equals(field)) {
+        latitude = parser.getDoubleValue();
+      } else if ("lon".equals(field)) {
+        longitude = parser.getDoubleValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if ((latitude == null) || (longitude == null)) {
+      Log.e(TAG, "Missing latitude or longitude.");
       return null;
     }
+
+    Location location = new Location("");
+    location.setLatitude(latitude);
+    location.setLongitude(longitude);
+    return location;
   }
 }
@@ -47,23 +47,32 @@ public class HomeActivity extends Activity {
             Math.round(getLocalizedTemperature(data.currentTemperature)));
         temperatureView.setText(temperature);
 
-        // Populate the 24-hour forecast summary, but strip any period at the end.
-        String summary = util.stripPeriod(data.forecastSummary);
-        weatherSummaryView.setText(summary);
-
-        // Populate the precipitation probability as a percentage rounded to a whole number.
-        String precipitation =
-            String.format(Locale.US, "%d%%", Math.round(100 * data.precipitationProbability));
-        precipitationView.setText(precipitation);
-
         // Populate the icon for the current weather.
         iconView.setImageResource(data.currentIcon);
 
-        // Show all the views.
+        // Show the current weather views.
         temperatureView.setVisibility(View.VISIBLE);
-        weatherSummaryView.setVisibility(View.VISIBLE);
-        precipitationView.setVisibility(View.VISIBLE);
         iconView.setVisibility(View.VISIBLE);
+
+        // The forecast may still be loading.
+        if (data.forecastSummary != null) {
+
+          // Populate the 24-hour forecast summary, but strip any period at the end.
+          String summary = util.stripPeriod(data.forecastSummary);
+          weatherSummaryView.setText(summary);
+
+          // Populate the precipitation probability as a percentage rounded to a whole number.
+          String precipitation =
+              String.format(Locale.US, "%d%%", Math.round(100 * data.precipitationProbability));
+          precipitationView.setText(precipitation);
+
+          // Show the forecast views.
+          weatherSummaryView.setVisibility(View.VISIBLE);
+          precipitationView.setVisibility(View.VISIBLE);
+        } else {
+          weatherSummaryView.setVisibility(View.GONE);
+          precipitationView.setVisibility(View.GONE);
+        }
       } else {
 
         // Hide everything if there is no data.
@@ -139,10 +148,10 @@ public class HomeActivity extends Activity {
           if (summary != null) {
             commuteTextView.setText(summary.text);
             commuteTextView.setVisibility(View.VISIBLE);
-            travelModeView.setImageDrawable(summary.travelModeIcon);
+            travelModeView.setImageResource(summary.travelModeIcon);
             travelModeView.setVisibility(View.VISIBLE);
-            if (summary.trafficTrendIcon != null) {
-              trafficTrendView.setImageDrawable(summary.trafficTrendIcon);
+            if (summary.trafficTrendIcon != 0) {
+              trafficTrendView.setImageResource(summary.trafficTrendIcon);
               trafficTrendView.setVisibility(View.VISIBLE);
             } else {
               trafficTrendView.setVisibility(View.GONE);
@@ -191,12 +200,17 @@ public class HomeActivity extends Activity {
     travelModeView = (ImageView) findViewById(R.id.travel_mode);
     trafficTrendView = (ImageView) findViewById(R.id.traffic_trend);
 
+    Network.installResponseCache(this);
+
     weather = new Weather(this, weatherUpdateListener);
     air = new Air(this, airQualityUpdateListener);
-    news = new News(newsUpdateListener);
+    news = new News(this, newsUpdateListener);
     body = new Body(this, bodyUpdateListener);
     commute = new Commute(this, commuteUpdateListener);
     util = new Util(this);
+
+    // Warm up the connections to the API hosts known from the updaters.
+    Network.prewarm(this);
   }
 
   @Override
@@ -216,6 +230,7 @@ public class HomeActivity extends Activity {
     news.stop();
     body.stop();
     commute.stop();
+    Network.flushResponseCache();
     super.onStop();
   }
 
@@ -3,27 +3,63 @@ package net.maxbraun.mirror;
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.http.HttpResponseCache;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.builder.api.DefaultApi20;
+import com.github.scribejava.core.httpclient.jdk.JDKHttpClientConfig;
 import com.github.scribejava.core.model.OAuth2AccessToken;
 import com.github.scribejava.core.model.OAuthRequest;
 import com.github.scribejava.core.model.Response;
 import com.github.scribejava.core.model.Verb;
 import com.github.scribejava.core.oauth.OAuth20Service;
+import com.google.common.io.CountingInputStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -39,25 +75,178 @@ public abstract class Network {
   private static final int DOWNLOAD_BUFFER_SIZE_BYTES = 1024;
 
   /**
-   * The shared preferences key suffix for the access token.
+   * The maximum time in milliseconds to wait for a connection to be established.
    */
-  private static final String KEY_ACCESS_TOKEN = "access_token";
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
 
   /**
-   * The shared preferences key suffix for the refresh token.
+   * The maximum time in milliseconds to wait for more data while reading a response.
    */
-  private static final String KEY_REFRESH_TOKEN = "refresh_token";
+  private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
 
   /**
-   * The shared preferences key suffix for the lifetime (in seconds) of the access token.
+   * The maximum number of idle connections kept open for reuse across all hosts, which leaves room
+   * for a couple per API host.
    */
-  private static final String KEY_EXPIRES_IN = "expires_in";
+  private static final int MAX_IDLE_CONNECTIONS = 8;
 
   /**
-   * The shared preferences key suffix for the Unix time (in seconds) when the access token as been
-   * refreshed.
+   * The time in milliseconds that idle connections are kept open for reuse. Most updaters poll far
+   * less often than this, so connections are mainly reused within the burst of requests on one
+   * common tick, i.e. after a warm-up, between parallel requests and for retries. Only updates on
+   * consecutive five-minute ticks, like News at its shortest interval, can reuse them across ticks.
    */
-  private static final String KEY_REFRESH_TIME = "refresh_time";
+  private static final long KEEP_ALIVE_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * The content encodings requested for responses, in addition to uncompressed ones.
+   */
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  /**
+   * The response header in which Android's HTTP stack says where a response came from, e.g.
+   * {@code NETWORK 200}, {@code CACHE 200} or {@code CONDITIONAL_CACHE 304}.
+   */
+  private static final String RESPONSE_SOURCE_HEADER = "X-Android-Response-Source";
+
+  /**
+   * The maximum size in bytes of a decompressed response. Larger responses fail.
+   */
+  private static final long MAX_RESPONSE_SIZE_BYTES = 2 * 1024 * 1024;
+
+  /**
+   * The name of the directory in the app's cache directory for the HTTP response cache.
+   */
+  private static final String RESPONSE_CACHE_DIRECTORY = "http";
+
+  /**
+   * The maximum size in bytes of the HTTP response cache on disk.
+   */
+  private static final long RESPONSE_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The {@link RequestBudget RequestBudgets} by host. Each host is used with a single API key.
+   */
+  private static final ConcurrentMap<String, RequestBudget> requestBudgets =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The {@link CircuitBreaker CircuitBreakers} by host.
+   */
+  private static final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The {@link TrafficCounter TrafficCounters} by host.
+   */
+  private static final ConcurrentMap<String, TrafficCounter> trafficCounters =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The {@link RetryPolicy RetryPolicies} by host.
+   */
+  private static final ConcurrentMap<String, RetryPolicy> retryPolicies =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The {@link RetryPolicy} for hosts without their own, which allows one retry and no hedging.
+   */
+  private static final RetryPolicy DEFAULT_RETRY_POLICY =
+      new RetryPolicy(2, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS, false);
+
+  /**
+   * The maximum number of threads for hedged requests, which is enough to hedge one at a time.
+   */
+  private static final int HEDGE_POOL_SIZE = 2;
+
+  /**
+   * The format of the hedged request thread names, which helps with debugging.
+   */
+  private static final String HEDGE_THREAD_NAME_FORMAT = "hedge-%d";
+
+  /**
+   * The thread pool for hedged requests. It is separate from the {@link RequestGroup} threads that
+   * wait for them, so that waiting requests can't starve the ones they wait for. It has no queue,
+   * so requests are only hedged while there are threads free.
+   */
+  private static final ThreadPoolExecutor hedgeExecutor =
+      UpdateScheduler.newDaemonPool(HEDGE_THREAD_NAME_FORMAT, HEDGE_POOL_SIZE, false);
+
+  /**
+   * The maximum number of hosts warmed up at the same time.
+   */
+  private static final int PREWARM_POOL_SIZE = 2;
+
+  /**
+   * The format of the warm-up thread names, which helps with debugging.
+   */
+  private static final String PREWARM_THREAD_NAME_FORMAT = "prewarm-%d";
+
+  /**
+   * The thread pool for warm-ups. It is separate from the {@link RequestGroup} threads, so that
+   * requests waiting for a warm-up can't take up the threads it needs.
+   */
+  private static final ThreadPoolExecutor prewarmExecutor =
+      UpdateScheduler.newDaemonPool(PREWARM_THREAD_NAME_FORMAT, PREWARM_POOL_SIZE, true);
+
+  /**
+   * The time in milliseconds after which a host is warmed up again. The platform resolver caches
+   * the addresses according to their DNS TTLs, and idle connections stay in the pool for as long.
+   */
+  private static final long PREWARM_INTERVAL_MILLIS = KEEP_ALIVE_DURATION_MILLIS;
+
+  /**
+   * The maximum time in milliseconds that a request waits for a warm-up of its host in flight,
+   * so that it can reuse the connection instead of setting up its own.
+   */
+  private static final long PREWARM_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The warm-ups by host.
+   */
+  private static final ConcurrentMap<String, Prewarm> prewarms = new ConcurrentHashMap<>();
+
+  /**
+   * Whether warm-ups are enabled. Then, they are repeated each time the network becomes available
+   * and hosts that get a request budget later are warmed up right away.
+   */
+  private static final AtomicBoolean prewarmOnNetworkAvailable = new AtomicBoolean();
+
+  /**
+   * The {@link OAuthSession OAuthSessions} by service ID. Each is reused for all requests to the
+   * same API, so that its HTTP client keeps connections warm and its access token stays in memory.
+   */
+  private static final ConcurrentMap<String, OAuthSession> oauthSessions =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The name of the application-wide shared preferences that OAuth access tokens are saved to.
+   */
+  private static final String OAUTH_PREFERENCES_NAME = "oauth";
+
+  /**
+   * The requests currently in flight by key, so that identical ones can share the result.
+   */
+  private static final ConcurrentMap<RequestKey, FutureTask<?>> inFlightRequests =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The reader for text responses, shared so that text requests for the same URL share a key.
+   */
+  private static final ResponseReader<String> TEXT_READER = Network::read;
+
+  /**
+   * The shared factory for streaming JSON parsers, which recycles their buffers.
+   */
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  static {
+    // Configure the platform connection pool, which all HttpURLConnections share. Connections are
+    // returned to it once their response is read to the end and closed without disconnecting.
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION_MILLIS));
+  }
 
   /**
    * A provider for additional information about an OAuth API.
@@ -85,77 +274,569 @@ public abstract class Network {
   }
 
   /**
-   * A version of {@link OAuth2AccessToken} that knows when it should be refreshed.
+   * A warm-up of the DNS resolution and connection for one host.
+   */
+  private static class Prewarm {
+    /**
+     * The {@link SystemClock#elapsedRealtime()} time in milliseconds when the warm-up started.
+     */
+    final long startMillis;
+
+    /**
+     * The warm-up running in the background.
+     */
+    final Future<?> future;
+
+    Prewarm(long startMillis, Future<?> future) {
+      this.startMillis = startMillis;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Decodes a JSON response while it streams in, pulling only the values it needs.
+   */
+  public interface JsonReader<T> {
+    /**
+     * Reads the result from the specified parser, which is positioned on the first token.
+     */
+    T read(JsonParser parser) throws IOException;
+  }
+
+  /**
+   * A server error response, which may be temporary and is worth retrying.
+   */
+  private static class ServerErrorException extends IOException {
+    ServerErrorException(int responseCode) {
+      super("Server error response code: " + responseCode);
+    }
+  }
+
+  /**
+   * Reads the result from a response stream.
+   */
+  private interface ResponseReader<T> {
+    T read(InputStream inputStream) throws IOException;
+  }
+
+  /**
+   * Identifies a request in flight by its URL and how its response is read. Readers are compared
+   * by identity, since two instances of the same lambda may capture different values and read the
+   * same response differently.
    */
-  private static class AccessToken extends OAuth2AccessToken {
+  private static class RequestKey {
+    /**
+     * The URL, along with anything else that affects the response, like the OAuth service ID.
+     */
+    private final String url;
+
     /**
-     * The additional time in seconds to subtract from the expiration time.
+     * The reader of the response.
      */
-    private static final long REFRESH_TIME_BUFFER = 60;
+    private final Object reader;
+
+    RequestKey(String url, Object reader) {
+      this.url = url;
+      this.reader = reader;
+    }
 
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof RequestKey)) {
+        return false;
+      }
+      RequestKey key = (RequestKey) other;
+      return Objects.equals(url, key.url) && (reader == key.reader);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hashCode(url) + System.identityHashCode(reader);
+    }
+
+    @Override
+    public String toString() {
+      return url;
+    }
+  }
+
+  /**
+   * A stream that fails once more than {@link #MAX_RESPONSE_SIZE_BYTES} have been read from it or
+   * when the update it is read for has been cancelled.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
     /**
-     * The Unix time (in seconds) at which this access token was last refreshed.
+     * The number of bytes read so far.
      */
-    private final long refreshTime;
+    private long count;
+
+    LimitedInputStream(InputStream inputStream) {
+      super(inputStream);
+    }
 
     /**
-     * Creates a new access token from the basic data.
+     * @return the number of bytes read so far.
      */
-    public AccessToken(String accessToken, Integer expiresIn, String refreshToken,
-                       long refreshTime) {
-      super(accessToken, null, expiresIn, refreshToken, null, null);
-      this.refreshTime = refreshTime;
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkInterrupted();
+      int result = super.read();
+      if (result >= 0) {
+        count(1);
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      checkInterrupted();
+      int numRead = super.read(buffer, offset, length);
+      if (numRead > 0) {
+        count(numRead);
+      }
+      return numRead;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+      checkInterrupted();
+      long numSkipped = super.skip(length);
+      count(numSkipped);
+      return numSkipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
     }
 
     /**
-     * Creates a new access token by wrapping a {@link OAuth2AccessToken}.
+     * Gives up if the update this request is part of has been cancelled.
      */
-    public AccessToken(OAuth2AccessToken accessToken, long refreshTime) {
-      this(accessToken.getAccessToken(), accessToken.getExpiresIn(), accessToken.getRefreshToken(),
-          refreshTime);
+    private static void checkInterrupted() throws InterruptedIOException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Request interrupted.");
+      }
     }
 
     /**
-     * @return whether it's time to refresh this access token now.
+     * Adds to the number of bytes read and gives up if the response is too large.
      */
-    public boolean shouldRefreshNow() {
-      long currentTime = System.currentTimeMillis() / 1000;
-      // Subtract some additional time to refresh earlier than the last second.
-      return refreshTime + getExpiresIn() - REFRESH_TIME_BUFFER <= currentTime;
+    private void count(long numRead) throws IOException {
+      count += numRead;
+      if (count > MAX_RESPONSE_SIZE_BYTES) {
+        throw new IOException("Response larger than " + MAX_RESPONSE_SIZE_BYTES + " bytes.");
+      }
+    }
+  }
+
+  /**
+   * Installs a bounded HTTP response cache on disk for all requests, unless there already is one.
+   * Responses are served from it while they are fresh according to their Cache-Control headers.
+   * Afterwards, they are revalidated with conditional requests using their ETag or Last-Modified
+   * headers, so that unchanged content isn't downloaded again.
+   */
+  public static void installResponseCache(Context context) {
+    if (HttpResponseCache.getInstalled() != null) {
+      return;
+    }
+
+    File directory = new File(context.getCacheDir(), RESPONSE_CACHE_DIRECTORY);
+    try {
+      HttpResponseCache.install(directory, RESPONSE_CACHE_SIZE_BYTES);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to install response cache.", e);
+    }
+  }
+
+  /**
+   * Resolves and connects to all API hosts with a request budget in the background, so that the
+   * first requests to them don't have to wait for DNS, TCP and TLS. This is repeated whenever the
+   * network becomes available again. Hosts that get a request budget afterwards, e.g. from
+   * updaters created later, are warmed up as soon as they do.
+   */
+  public static void prewarm(Context context) {
+    if (prewarmOnNetworkAvailable.compareAndSet(false, true)) {
+      ConnectivityManager connectivityManager = (ConnectivityManager)
+          context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+      NetworkRequest networkRequest = new NetworkRequest.Builder()
+          .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+          .build();
+      connectivityManager.registerNetworkCallback(networkRequest,
+          new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(android.net.Network network) {
+              Log.d(TAG, "Network available.");
+
+              // Connections from before may be gone, so warm up again unless already underway.
+              Iterator<Prewarm> iterator = prewarms.values().iterator();
+              while (iterator.hasNext()) {
+                if (iterator.next().future.isDone()) {
+                  iterator.remove();
+                }
+              }
+              prewarmHosts();
+            }
+          });
+    }
+
+    prewarmHosts();
+  }
+
+  /**
+   * Starts warming up each host with a request budget, unless it was warmed up recently.
+   */
+  private static void prewarmHosts() {
+    for (String host : requestBudgets.keySet()) {
+      prewarmHost(host);
+    }
+  }
+
+  /**
+   * Starts warming up the specified host, unless it was warmed up recently.
+   */
+  private static synchronized void prewarmHost(String host) {
+    long nowMillis = SystemClock.elapsedRealtime();
+    Prewarm prewarm = prewarms.get(host);
+    if ((prewarm != null) && (nowMillis - prewarm.startMillis < PREWARM_INTERVAL_MILLIS)) {
+      return;
+    }
+
+    Future<?> future = prewarmExecutor.submit(() -> connect(host));
+    prewarms.put(host, new Prewarm(nowMillis, future));
+  }
+
+  /**
+   * Resolves the specified host and makes a HEAD request to it, which leaves a warm connection in
+   * the pool. The request isn't an API call, so it doesn't count against the request budget.
+   */
+  private static void connect(String host) {
+    HttpURLConnection connection = null;
+    try {
+      long startMillis = SystemClock.elapsedRealtime();
+      InetAddress[] addresses = InetAddress.getAllByName(host);
+      long resolvedMillis = SystemClock.elapsedRealtime();
+
+      connection = (HttpURLConnection) new URL("https://" + host + "/").openConnection();
+      connection.setRequestMethod("HEAD");
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      int responseCode = connection.getResponseCode();
+
+      // Close the empty response instead of disconnecting to keep the connection.
+      InputStream inputStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+          connection.getErrorStream() : connection.getInputStream();
+      if (inputStream != null) {
+        inputStream.close();
+      }
+      Log.d(TAG, String.format("Pre-warmed %s: %d address(es) in %d ms, connected in %d ms.", host,
+          addresses.length, resolvedMillis - startMillis,
+          SystemClock.elapsedRealtime() - resolvedMillis));
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to pre-warm " + host + ": " + e);
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Waits briefly for a warm-up of the host of the specified URL that is still in flight.
+   */
+  private static void awaitPrewarm(URL url) {
+    Prewarm prewarm = prewarms.get(url.getHost());
+    if ((prewarm == null) || prewarm.future.isDone()) {
+      return;
+    }
+
+    try {
+      prewarm.future.get(PREWARM_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      Log.w(TAG, "Not waiting for pre-warm of " + url.getHost() + ": " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes any pending changes to the HTTP response cache to disk.
+   */
+  public static void flushResponseCache() {
+    HttpResponseCache responseCache = HttpResponseCache.getInstalled();
+    if (responseCache != null) {
+      responseCache.flush();
+      Log.d(TAG, String.format("Response cache: %d hits, %d network, %d requests",
+          responseCache.getHitCount(), responseCache.getNetworkCount(),
+          responseCache.getRequestCount()));
     }
   }
 
   /**
    * Makes a HTTP(S) GET request to the specified URL and returns the result as text or
-   * {@code null} if there was an error.
+   * {@code null} if there was an error. Throws an {@link OverBudgetException} if the host's
+   * {@link RequestBudget} is used up for now.
    */
   public static String get(String urlString) {
+    return shareInFlight(new RequestKey(urlString, TEXT_READER),
+        () -> get(urlString, TEXT_READER));
+  }
+
+  /**
+   * Makes a HTTP(S) GET request to the specified URL and decodes the JSON response while it
+   * streams in, or returns {@code null} if there was an error. Concurrent calls share a single
+   * request only if they pass the same reader instance, like a method reference that doesn't
+   * capture anything.
+   */
+  public static <T> T getJson(String urlString, JsonReader<T> jsonReader) {
+    return shareInFlight(new RequestKey(urlString, jsonReader),
+        () -> get(urlString, inputStream -> readJson(inputStream, jsonReader)));
+  }
+
+  /**
+   * Makes a HTTP(S) GET request to the specified URL and returns the result of reading the
+   * response or {@code null} if there was an error. Failed attempts are retried according to the
+   * {@link RetryPolicy} for the host, as long as its {@link RequestBudget} has room for them.
+   */
+  private static <T> T get(String urlString, ResponseReader<T> responseReader) {
     if (urlString == null) {
       return null;
     }
-    Log.d(TAG, "Requesting URL: " + urlString);
 
+    URL url;
+    try {
+      url = new URL(urlString);
+    } catch (MalformedURLException e) {
+      Log.e(TAG, "Invalid URL: " + urlString, e);
+      return null;
+    }
+    RetryPolicy retryPolicy = getRetryPolicy(url);
+
+    // GET requests are idempotent, so they can safely be retried.
+    IOException failure = null;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return getHedged(url, retryPolicy, responseReader, attempt > 1);
+      } catch (OverBudgetException e) {
+        // Only the first attempt makes the update wait for budget. A retry without budget gives up
+        // with the failure that led to it instead.
+        if (failure == null) {
+          throw e;
+        }
+        Log.e(TAG, "Request failed without budget for a retry.", failure);
+        return null;
+      } catch (IOException e) {
+        failure = e;
+        // Give up if the error won't go away, if out of attempts or if the update this request is
+        // part of has been cancelled.
+        if (!isRetryable(e) || (attempt >= retryPolicy.getMaxAttempts())
+            || Thread.currentThread().isInterrupted()) {
+          Log.e(TAG, "Request failed.", e);
+          return null;
+        }
+
+        long retryDelayMillis = retryPolicy.getRetryDelayMillis(attempt);
+        Log.w(TAG, String.format("Retrying request in %d ms after failure: %s", retryDelayMillis,
+            e));
+        try {
+          Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the specified error may be temporary, i.e. a timeout, a connection that failed
+   * or was reset, or a server error. Errors like malformed or oversized responses aren't.
+   */
+  private static boolean isRetryable(IOException e) {
+    return (e instanceof SocketTimeoutException) || (e instanceof SocketException)
+        || (e instanceof ServerErrorException);
+  }
+
+  /**
+   * Makes a single attempt at a request. If hedging is enabled and the request takes longer than
+   * most recent ones, a second request is made and whichever returns first is used. Both run on
+   * the {@link #hedgeExecutor}, while the calling thread waits no longer than the timeouts allow.
+   * Without a free thread there, the request is made directly and not hedged. The hedged request
+   * is an extra attempt, like a retry, which only gets leftover budget.
+   */
+  private static <T> T getHedged(URL url, RetryPolicy retryPolicy,
+                                 ResponseReader<T> responseReader, boolean retry)
+      throws IOException {
+    long hedgeDelayMillis = retryPolicy.getHedgeDelayMillis();
+    if (hedgeDelayMillis < 0) {
+      return request(url, retryPolicy, responseReader, retry);
+    }
+
+    CompletionService<T> requests = new ExecutorCompletionService<>(hedgeExecutor);
+    List<Future<T>> futures = new ArrayList<>();
+    long deadlineMillis = SystemClock.elapsedRealtime() + retryPolicy.getConnectTimeoutMillis()
+        + retryPolicy.getReadTimeoutMillis();
+    try {
+      try {
+        futures.add(requests.submit(() -> request(url, retryPolicy, responseReader, retry)));
+      } catch (RejectedExecutionException e) {
+        Log.d(TAG, "Not hedging request without a free thread: " + url);
+        return request(url, retryPolicy, responseReader, retry);
+      }
+      Future<T> done = requests.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+      if (done == null) {
+        try {
+          futures.add(requests.submit(() -> request(url, retryPolicy, responseReader, true)));
+          Log.d(TAG, String.format("Hedged request after %d ms: %s", hedgeDelayMillis, url));
+        } catch (RejectedExecutionException e) {
+          Log.d(TAG, "Not hedging request without a free thread: " + url);
+        }
+        done = pollUntil(requests, deadlineMillis);
+      }
+
+      // If the first request to finish failed, wait for the other one, if there is one. A hedge
+      // without budget doesn't hide the failure of the other request.
+      Throwable cause = null;
+      for (int remaining = futures.size(); ; remaining--) {
+        try {
+          return done.get();
+        } catch (ExecutionException e) {
+          if ((cause == null) || !(e.getCause() instanceof OverBudgetException)) {
+            cause = e.getCause();
+          }
+          if (remaining <= 1) {
+            if (cause instanceof OverBudgetException) {
+              throw (OverBudgetException) cause;
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+          }
+          done = pollUntil(requests, deadlineMillis);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Request interrupted.");
+    } finally {
+      // Stop the request that lost.
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Waits for the next request to finish until the specified {@link SystemClock#elapsedRealtime()}
+   * time in milliseconds and fails with a timeout if none does.
+   */
+  private static <T> Future<T> pollUntil(CompletionService<T> requests, long deadlineMillis)
+      throws InterruptedException, SocketTimeoutException {
+    long timeoutMillis = Math.max(deadlineMillis - SystemClock.elapsedRealtime(), 0);
+    Future<T> done = requests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    if (done == null) {
+      throw new SocketTimeoutException("Hedged request timed out.");
+    }
+    return done;
+  }
+
+  /**
+   * Makes a single HTTP(S) GET request to the specified URL and returns the result of reading the
+   * response or {@code null} if there was an error response that isn't worth retrying. Throws an
+   * {@link IOException} for other errors, which may be retried if {@link #isRetryable} says so.
+   * Throws an {@link OverBudgetException} without making the request if there is no budget for it.
+   */
+  private static <T> T request(URL url, RetryPolicy retryPolicy,
+                               ResponseReader<T> responseReader, boolean extraAttempt)
+      throws IOException {
+    Log.d(TAG, "Requesting URL: " + url);
+
+    // Fail right away while the host is down.
+    CircuitBreaker circuitBreaker = getCircuitBreaker(url);
+    if (!circuitBreaker.allowRequest()) {
+      Log.w(TAG, "Skipping request to failing host: " + url.getHost());
+      return null;
+    }
+    try {
+      acquireRequestBudget(url, extraAttempt);
+    } catch (OverBudgetException e) {
+      circuitBreaker.release();
+      throw e;
+    }
+    awaitPrewarm(url);
+
+    long startMillis = SystemClock.elapsedRealtime();
     HttpURLConnection connection = null;
     InputStream inputStream = null;
+    CountingInputStream compressedStream = null;
+    LimitedInputStream decodedStream = null;
+    boolean hostResponded = false;
+    boolean fromCache = false;
     try {
-      URL url = new URL(urlString);
-      if (urlString.startsWith("https")) {
+      if ("https".equals(url.getProtocol())) {
         connection = (HttpsURLConnection) url.openConnection();
       } else {
         connection = (HttpURLConnection) url.openConnection();
       }
-      inputStream = connection.getInputStream();
-      InputStreamReader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-      StringBuilder result = new StringBuilder();
-      char[] buffer = new char[DOWNLOAD_BUFFER_SIZE_BYTES];
-      for (int numRead; (numRead = reader.read(buffer, 0, buffer.length)) > 0; ) {
-        result.append(buffer, 0, numRead);
+      connection.setConnectTimeout(retryPolicy.getConnectTimeoutMillis());
+      connection.setReadTimeout(retryPolicy.getReadTimeoutMillis());
+      connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+
+      // Read error responses to the end, too, so that the connection can still be reused.
+      int responseCode = connection.getResponseCode();
+      hostResponded = responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR;
+      fromCache = isFromCache(connection.getHeaderField(RESPONSE_SOURCE_HEADER));
+      if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+        inputStream = connection.getErrorStream();
+        if (inputStream != null) {
+          // Error responses are read as they are, without decompression.
+          compressedStream = new CountingInputStream(inputStream);
+          inputStream = compressedStream;
+          decodedStream = new LimitedInputStream(compressedStream);
+          read(decodedStream);
+        }
+
+        // Server errors may be temporary, but client errors won't go away by retrying.
+        if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+          throw new ServerErrorException(responseCode);
+        }
+        Log.e(TAG, "Request failed with response code: " + responseCode);
+        return null;
       }
-      return result.toString();
+
+      // Count the bytes before and after decompression.
+      compressedStream = new CountingInputStream(connection.getInputStream());
+      inputStream = compressedStream;
+      decodedStream =
+          new LimitedInputStream(decode(compressedStream, connection.getContentEncoding()));
+      inputStream = decodedStream;
+      T result = responseReader.read(decodedStream);
+      long latencyMillis = SystemClock.elapsedRealtime() - startMillis;
+      retryPolicy.recordLatency(latencyMillis);
+      Log.d(TAG, String.format("Read response in %d ms.", latencyMillis));
+      return result;
     } catch (IOException e) {
-      Log.e(TAG, "Request failed.", e);
-      return null;
+      // Don't return a connection in an unknown state to the pool.
+      if (connection != null) {
+        connection.disconnect();
+      }
+      throw e;
     } finally {
+      // Requests cancelled before a response say nothing about the host.
+      if (hostResponded) {
+        circuitBreaker.recordSuccess();
+      } else if (Thread.currentThread().isInterrupted()) {
+        circuitBreaker.release();
+      } else {
+        circuitBreaker.recordFailure();
+      }
+      recordTraffic(url, compressedStream, decodedStream, fromCache);
+
+      // Closing the stream instead of disconnecting keeps the connection alive for reuse.
       if (inputStream != null) {
         try {
           inputStream.close();
@@ -163,9 +844,101 @@ public abstract class Network {
           Log.w(TAG, "Failed to close input stream.");
         }
       }
-      if (connection != null) {
-        connection.disconnect();
+    }
+  }
+
+  /**
+   * Returns whether the specified {@link #RESPONSE_SOURCE_HEADER} value says that the response body
+   * came from the local cache, either right away or after the server confirmed it with a
+   * {@code 304}.
+   */
+  private static boolean isFromCache(String responseSource) {
+    return (responseSource != null) && (responseSource.startsWith("CACHE ")
+        || responseSource.equals("CONDITIONAL_CACHE 304"));
+  }
+
+  /**
+   * Adds the bytes read from the specified streams to the {@link TrafficCounter} for the host of
+   * the specified URL, as cache bytes if the response came from the local cache. Either stream may
+   * be {@code null} if the response was never read.
+   */
+  private static void recordTraffic(URL url, CountingInputStream compressedStream,
+                                    LimitedInputStream decodedStream, boolean fromCache) {
+    if (compressedStream == null) {
+      return;
+    }
+
+    String host = url.getHost();
+    TrafficCounter trafficCounter = trafficCounters.get(host);
+    if (trafficCounter == null) {
+      trafficCounters.putIfAbsent(host, new TrafficCounter(host));
+      trafficCounter = trafficCounters.get(host);
+    }
+
+    long decodedBytes = decodedStream != null ? decodedStream.getCount() : 0;
+    if (fromCache) {
+      Log.d(TAG, String.format("Read %d bytes from cache for %s.", decodedBytes, host));
+      trafficCounter.recordCacheHit(decodedBytes);
+      return;
+    }
+    long compressedBytes = compressedStream.getCount();
+    Log.d(TAG, String.format("Received %d bytes (%d compressed) from %s.", decodedBytes,
+        compressedBytes, host));
+    trafficCounter.record(compressedBytes, decodedBytes);
+  }
+
+  /**
+   * Creates a human-readable summary of the response bytes from all hosts with one line each.
+   */
+  public static String getTrafficSummary() {
+    List<String> lines = new ArrayList<>();
+    for (TrafficCounter trafficCounter : trafficCounters.values()) {
+      lines.add(trafficCounter.getSummary());
+    }
+    if (lines.isEmpty()) {
+      return "No responses read.";
+    }
+    return TextUtils.join("\n", lines);
+  }
+
+  /**
+   * Wraps the specified stream to decompress it while reading according to the content encoding.
+   */
+  private static InputStream decode(InputStream inputStream, String contentEncoding)
+      throws IOException {
+    if ("gzip".equalsIgnoreCase(contentEncoding)) {
+      return new GZIPInputStream(inputStream, DOWNLOAD_BUFFER_SIZE_BYTES);
+    } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+      return new InflaterInputStream(inputStream);
+    } else {
+      return inputStream;
+    }
+  }
+
+  /**
+   * Reads the specified stream to the end as UTF-8 text.
+   */
+  private static String read(InputStream inputStream) throws IOException {
+    InputStreamReader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+    StringBuilder result = new StringBuilder();
+    char[] buffer = new char[DOWNLOAD_BUFFER_SIZE_BYTES];
+    for (int numRead; (numRead = reader.read(buffer, 0, buffer.length)) > 0; ) {
+      result.append(buffer, 0, numRead);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Decodes the JSON in the specified stream with the specified {@link JsonReader}, without
+   * reading all of it into memory first.
+   */
+  private static <T> T readJson(InputStream inputStream, JsonReader<T> jsonReader)
+      throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+      if (parser.nextToken() == null) {
+        throw new JsonParseException(parser, "Empty JSON response.");
       }
+      return jsonReader.read(parser);
     }
   }
 
@@ -174,49 +947,229 @@ public abstract class Network {
    */
   public static String get(Activity activity, String urlString, DefaultApi20 api,
                            OAuthDataProvider data) {
+    return shareInFlight(new RequestKey(data.getServiceId() + " " + urlString, TEXT_READER),
+        () -> get(activity, urlString, api, data, TEXT_READER));
+  }
+
+  /**
+   * Like {@link #getJson(String, JsonReader)}, but for OAuth authenticated requests.
+   */
+  public static <T> T getJson(Activity activity, String urlString, DefaultApi20 api,
+                              OAuthDataProvider data, JsonReader<T> jsonReader) {
+    return shareInFlight(new RequestKey(data.getServiceId() + " " + urlString, jsonReader),
+        () -> get(activity, urlString, api, data,
+            inputStream -> readJson(inputStream, jsonReader)));
+  }
+
+  /**
+   * Makes the specified request, unless an identical one with the same key is already in flight.
+   * In that case, waits for it and returns its result instead, so that concurrent callers share a
+   * single request and the work to parse it.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T shareInFlight(RequestKey key, Callable<T> request) {
+    FutureTask<T> task = new FutureTask<>(request);
+    FutureTask<?> inFlightTask = inFlightRequests.putIfAbsent(key, task);
+    try {
+      if (inFlightTask != null) {
+        Log.d(TAG, "Joining in-flight request: " + key);
+        return (T) inFlightTask.get();
+      }
+
+      try {
+        task.run();
+        return task.get();
+      } finally {
+        inFlightRequests.remove(key, task);
+      }
+    } catch (InterruptedException e) {
+      // Keep the interrupt for the update this request is part of.
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // Let the update know to wait for more budget instead of treating this as a failure.
+      if (e.getCause() instanceof OverBudgetException) {
+        throw (OverBudgetException) e.getCause();
+      }
+      Log.e(TAG, "Request failed.", e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Like {@link #get(String, ResponseReader)}, but for OAuth authenticated requests.
+   */
+  private static <T> T get(Activity activity, String urlString, DefaultApi20 api,
+                           OAuthDataProvider data, ResponseReader<T> responseReader) {
     if (urlString == null) {
       return null;
     }
     Log.d(TAG, "Requesting OAuth URL: " + urlString);
 
+    CircuitBreaker circuitBreaker = null;
+    boolean hostResponded = false;
     try {
-      OAuth20Service service = new ServiceBuilder(data.getClientId())
-          .apiSecret(data.getClientSecret())
-          .build(api);
-
-      // Look for any saved access token. If there is none, refresh using the initial refresh token.
-      // If there is one but it is expired, refresh using the saved refresh token.
-      AccessToken accessToken = loadAccessToken(activity, data);
-      if ((accessToken == null) || accessToken.shouldRefreshNow()) {
-        Log.w(TAG, "Refreshing access token.");
-
-        // Figure out which refresh token to use.
-        String refreshToken;
-        if (accessToken == null) {
-          Log.d(TAG, "Using initial refresh token.");
-          refreshToken = data.getRefreshToken();
-        } else {
-          Log.d(TAG, "Using saved refresh token.");
-          refreshToken = accessToken.getRefreshToken();
-        }
-
-        // Get the new access token.
-        long refreshTime = System.currentTimeMillis() / 1000;
-        accessToken = new AccessToken(service.refreshAccessToken(refreshToken), refreshTime);
-
-        // Save it for next time.
-        saveAccessToken(activity, data, accessToken, refreshTime);
+      URL url = new URL(urlString);
+      circuitBreaker = getCircuitBreaker(url);
+      if (!circuitBreaker.allowRequest()) {
+        Log.w(TAG, "Skipping OAuth request to failing host: " + url.getHost());
+        circuitBreaker = null;
+        return null;
       }
+      try {
+        acquireRequestBudget(url, false);
+      } catch (OverBudgetException e) {
+        circuitBreaker.release();
+        circuitBreaker = null;
+        throw e;
+      }
+      awaitPrewarm(url);
+
+      OAuthSession session = getOAuthSession(activity, api, data);
+      OAuth2AccessToken accessToken = session.getAccessToken();
 
       // Make the authenticated request.
       OAuthRequest request = new OAuthRequest(Verb.GET, urlString);
-      service.signRequest(accessToken, request);
-      Response response = service.execute(request);
+      request.addHeader("Accept-Encoding", "gzip");
+      session.getService().signRequest(accessToken, request);
+      Response response = session.getService().execute(request);
+      hostResponded = response.getCode() < HttpURLConnection.HTTP_INTERNAL_ERROR;
+
+      if (response.getStream() == null) {
+        Log.e(TAG, "OAuth request failed with response code: " + response.getCode());
+        return null;
+      }
+
+      // Decode the response while it streams in, counting the bytes before and after.
+      CountingInputStream compressedStream = new CountingInputStream(response.getStream());
+      LimitedInputStream decodedStream = null;
+      try {
+        decodedStream = new LimitedInputStream(
+            decode(compressedStream, response.getHeader("Content-Encoding")));
+        return responseReader.read(decodedStream);
+      } finally {
+        recordTraffic(url, compressedStream, decodedStream,
+            isFromCache(response.getHeader(RESPONSE_SOURCE_HEADER)));
 
-      return response.getBody();
+        // Closing the decoding stream also releases its decompressor.
+        if (decodedStream != null) {
+          decodedStream.close();
+        } else {
+          compressedStream.close();
+        }
+      }
     } catch (IOException | InterruptedException | ExecutionException e) {
       Log.e(TAG, "OAuth request failed.", e);
       return null;
+    } finally {
+      if (circuitBreaker != null) {
+        if (hostResponded) {
+          circuitBreaker.recordSuccess();
+        } else if (Thread.currentThread().isInterrupted()) {
+          circuitBreaker.release();
+        } else {
+          circuitBreaker.recordFailure();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link CircuitBreaker} for the host of the specified URL, creating it if needed.
+   */
+  private static CircuitBreaker getCircuitBreaker(URL url) {
+    String host = url.getHost();
+    CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+    if (circuitBreaker != null) {
+      return circuitBreaker;
+    }
+
+    circuitBreaker = new CircuitBreaker(host);
+    CircuitBreaker existingCircuitBreaker = circuitBreakers.putIfAbsent(host, circuitBreaker);
+    return existingCircuitBreaker != null ? existingCircuitBreaker : circuitBreaker;
+  }
+
+  /**
+   * Sets the timeouts and retries for requests to the specified host. Hosts without a policy use
+   * the default timeouts and retry once.
+   */
+  public static void setRetryPolicy(String host, RetryPolicy retryPolicy) {
+    retryPolicies.put(host, retryPolicy);
+  }
+
+  /**
+   * Returns the {@link RetryPolicy} for the host of the specified URL.
+   */
+  private static RetryPolicy getRetryPolicy(URL url) {
+    RetryPolicy retryPolicy = retryPolicies.get(url.getHost());
+    return retryPolicy != null ? retryPolicy : DEFAULT_RETRY_POLICY;
+  }
+
+  /**
+   * Stops refreshing the access token for the specified API in the background until the next
+   * request to it. Call this when no more requests are made for now.
+   */
+  public static void stopOAuthSession(OAuthDataProvider data) {
+    OAuthSession session = oauthSessions.get(data.getServiceId());
+    if (session != null) {
+      session.cancelBackgroundRefresh();
+    }
+  }
+
+  /**
+   * Returns the shared {@link OAuthSession} for the specified API, creating it if needed.
+   */
+  private static OAuthSession getOAuthSession(Activity activity, DefaultApi20 api,
+                                              OAuthDataProvider data) {
+    OAuthSession session = oauthSessions.get(data.getServiceId());
+    if (session != null) {
+      return session;
+    }
+
+    JDKHttpClientConfig httpClientConfig = JDKHttpClientConfig.defaultConfig();
+    httpClientConfig.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    httpClientConfig.setReadTimeout(READ_TIMEOUT_MILLIS);
+    OAuth20Service service = new ServiceBuilder(data.getClientId())
+        .apiSecret(data.getClientSecret())
+        .httpClientConfig(httpClientConfig)
+        .build(api);
+    // The session outlives the activity, so save the access token for the whole app. Earlier
+    // versions saved it for the activity only.
+    SharedPreferences preferences = activity.getApplicationContext()
+        .getSharedPreferences(OAUTH_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    session = new OAuthSession(service, preferences, activity.getPreferences(Context.MODE_PRIVATE),
+        data);
+    OAuthSession existingSession = oauthSessions.putIfAbsent(data.getServiceId(), session);
+    return existingSession != null ? existingSession : session;
+  }
+
+  /**
+   * Limits the requests to the specified host to a maximum number within a rolling window of the
+   * specified duration in milliseconds. Requests beyond the budget fail without network access.
+   * The counts are persisted, so the budget holds across restarts.
+   */
+  public static void setRequestBudget(Context context, String host, int maxRequests,
+                                      long windowMillis) {
+    if (!requestBudgets.containsKey(host)) {
+      requestBudgets.putIfAbsent(host,
+          new RequestBudget(context, host, maxRequests, windowMillis));
+    }
+
+    // Updaters may be created after the warm-ups have been enabled.
+    if (prewarmOnNetworkAvailable.get()) {
+      prewarmHost(host);
+    }
+  }
+
+  /**
+   * Records a request to the host of the specified URL or throws an {@link OverBudgetException} if
+   * it isn't within budget.
+   */
+  private static void acquireRequestBudget(URL url, boolean extraAttempt) {
+    RequestBudget requestBudget = requestBudgets.get(url.getHost());
+    if ((requestBudget != null) && !requestBudget.tryAcquire(extraAttempt)) {
+      Log.w(TAG, "Skipping request over budget: " + url.getHost());
+      throw new OverBudgetException(url.getHost(), requestBudget.getMillisUntilNextBucket());
     }
   }
 
@@ -273,50 +1226,4 @@ public abstract class Network {
 
     return new JSONArray(response);
   }
-
-  /**
-   * Loads an access token from shared preferences.
-   */
-  private static AccessToken loadAccessToken(Activity activity, OAuthDataProvider data) {
-    // Check if all keys are present.
-    SharedPreferences preferences = activity.getPreferences(Context.MODE_PRIVATE);
-    String accessTokenKey = getScopedKey(data, KEY_ACCESS_TOKEN);
-    String refreshTokenKey = getScopedKey(data, KEY_REFRESH_TOKEN);
-    String expiresInKey = getScopedKey(data, KEY_EXPIRES_IN);
-    String refreshTimeKey = getScopedKey(data, KEY_REFRESH_TIME);
-    if (!preferences.contains(accessTokenKey) || !preferences.contains(refreshTokenKey)
-        || !preferences.contains(expiresInKey) || !preferences.contains(refreshTimeKey)) {
-      return null;
-    }
-
-    // Load the access token data from shared preferences.
-    String accessToken = preferences.getString(accessTokenKey, null);
-    String refreshToken = preferences.getString(refreshTokenKey, null);
-    int expiresIn = preferences.getInt(expiresInKey, 0);
-    long refreshTime = preferences.getLong(refreshTimeKey, 0);
-
-    // Create the access token from the data.
-    return new AccessToken(accessToken, expiresIn, refreshToken, refreshTime);
-  }
-
-  /**
-   * Saves an access token to shared preferences.
-   */
-  private static void saveAccessToken(Activity activity, OAuthDataProvider data,
-                                      AccessToken accessToken, long refreshTime) {
-    // Save the access token data to shared preferences.
-    SharedPreferences.Editor editor = activity.getPreferences(Context.MODE_PRIVATE).edit();
-    editor.putString(getScopedKey(data, KEY_ACCESS_TOKEN), accessToken.getAccessToken());
-    editor.putString(getScopedKey(data, KEY_REFRESH_TOKEN), accessToken.getRefreshToken());
-    editor.putInt(getScopedKey(data, KEY_EXPIRES_IN), accessToken.getExpiresIn());
-    editor.putLong(getScopedKey(data, KEY_REFRESH_TIME), refreshTime);
-    editor.commit();
-  }
-
-  /**
-   * Creates a unique shared preferences key scoped to one service.
-   */
-  private static String getScopedKey(OAuthDataProvider data, String key) {
-    return data.getServiceId() + "_" + key;
-  }
 }
@@ -1,9 +1,13 @@
 package net.maxbraun.mirror;
 
+import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -29,13 +33,22 @@ public class News extends DataUpdater<List<String>> {
    */
   private static final long UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
+  /**
+   * The longest time in milliseconds between API calls while the headlines don't change.
+   */
+  private static final long MAX_UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
   /**
    * A parser for the news feed XML.
    */
   private final XmlPullParser parser;
 
-  public News(UpdateListener<List<String>> updateListener) {
+  public News(Context context, UpdateListener<List<String>> updateListener) {
     super(updateListener, UPDATE_INTERVAL_MILLIS);
+    setSkipUnchanged(true);
+    setUpdateIntervalBounds(UPDATE_INTERVAL_MILLIS, MAX_UPDATE_INTERVAL_MILLIS);
+    enableSnapshots(context);
+    enableSchedule("news");
 
     parser = Xml.newPullParser();
     try {
@@ -95,6 +108,23 @@ public class News extends DataUpdater<List<String>> {
     }
   }
 
+  @Override
+  protected JSONObject toSnapshot(List<String> headlines) throws JSONException {
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("headlines", new JSONArray(headlines));
+    return snapshot;
+  }
+
+  @Override
+  protected List<String> fromSnapshot(JSONObject snapshot) throws JSONException {
+    JSONArray headlinesJson = snapshot.getJSONArray("headlines");
+    List<String> headlines = new ArrayList<>();
+    for (int i = 0; i < headlinesJson.length(); i++) {
+      headlines.add(headlinesJson.getString(i));
+    }
+    return headlines;
+  }
+
   /**
    * Reads the contents of a {@code <title>} tag within an {@code <item>} tag at the current parser
    * position.
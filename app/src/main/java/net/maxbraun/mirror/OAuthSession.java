@@ -0,0 +1,330 @@
+package net.maxbraun.mirror;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.github.scribejava.core.oauth.OAuth20Service;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OAuth service and access token for one API, kept in memory across requests. The access token
+ * is refreshed in the background shortly before it would have to be refreshed on the request path
+ * and saved to shared preferences without blocking.
+ */
+public class OAuthSession {
+  private static final String TAG = OAuthSession.class.getSimpleName();
+
+  /**
+   * The time in seconds before the access token is due for a refresh at which it is refreshed in
+   * the background.
+   */
+  private static final long BACKGROUND_REFRESH_AHEAD_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+  /**
+   * The name of the background refresh thread, which helps with debugging.
+   */
+  private static final String THREAD_NAME = "oauth-refresh";
+
+  /**
+   * The thread for background refreshes of all sessions. It is separate from the
+   * {@link UpdateScheduler} threads, so that a slow refresh can't hold up the updates.
+   */
+  private static final ScheduledThreadPoolExecutor refreshExecutor =
+      UpdateScheduler.newDaemonScheduledPool(THREAD_NAME, 1);
+
+  /**
+   * The shared preferences key suffix for the access token.
+   */
+  private static final String KEY_ACCESS_TOKEN = "access_token";
+
+  /**
+   * The shared preferences key suffix for the refresh token.
+   */
+  private static final String KEY_REFRESH_TOKEN = "refresh_token";
+
+  /**
+   * The shared preferences key suffix for the lifetime (in seconds) of the access token.
+   */
+  private static final String KEY_EXPIRES_IN = "expires_in";
+
+  /**
+   * The shared preferences key suffix for the Unix time (in seconds) when the access token as been
+   * refreshed.
+   */
+  private static final String KEY_REFRESH_TIME = "refresh_time";
+
+  /**
+   * A version of {@link OAuth2AccessToken} that knows when it should be refreshed.
+   */
+  private static class AccessToken extends OAuth2AccessToken {
+    /**
+     * The additional time in seconds to subtract from the expiration time.
+     */
+    private static final long REFRESH_TIME_BUFFER = 60;
+
+    /**
+     * The Unix time (in seconds) at which this access token was last refreshed.
+     */
+    private final long refreshTime;
+
+    /**
+     * Creates a new access token from the basic data.
+     */
+    public AccessToken(String accessToken, Integer expiresIn, String refreshToken,
+                       long refreshTime) {
+      super(accessToken, null, expiresIn, refreshToken, null, null);
+      this.refreshTime = refreshTime;
+    }
+
+    /**
+     * Creates a new access token by wrapping a {@link OAuth2AccessToken}.
+     */
+    public AccessToken(OAuth2AccessToken accessToken, long refreshTime) {
+      this(accessToken.getAccessToken(), accessToken.getExpiresIn(), accessToken.getRefreshToken(),
+          refreshTime);
+    }
+
+    /**
+     * @return whether it's time to refresh this access token now.
+     */
+    public boolean shouldRefreshNow() {
+      return getSecondsUntilRefresh() <= 0;
+    }
+
+    /**
+     * @return the time in seconds until this access token should be refreshed.
+     */
+    public long getSecondsUntilRefresh() {
+      long currentTime = System.currentTimeMillis() / 1000;
+      // Subtract some additional time to refresh earlier than the last second.
+      return refreshTime + getExpiresIn() - REFRESH_TIME_BUFFER - currentTime;
+    }
+  }
+
+  /**
+   * The service used to refresh the access token and make requests.
+   */
+  private final OAuth20Service service;
+
+  /**
+   * The application-wide shared preferences the access token is saved to.
+   */
+  private final SharedPreferences preferences;
+
+  /**
+   * The shared preferences an access token may have been saved to before, which it is moved from.
+   */
+  private final SharedPreferences legacyPreferences;
+
+  /**
+   * The provider of information about the API.
+   */
+  private final Network.OAuthDataProvider data;
+
+  /**
+   * Held while refreshing the access token, so that only one refresh uses the refresh token. The
+   * session itself is only locked briefly, so that requests with a valid access token don't wait.
+   */
+  private final Object refreshLock = new Object();
+
+  /**
+   * The current access token or {@code null} if it hasn't been loaded or refreshed yet.
+   */
+  private AccessToken accessToken;
+
+  /**
+   * Whether the access token has been loaded from shared preferences.
+   */
+  private boolean loaded;
+
+  /**
+   * The pending background refresh or {@code null} if there is none.
+   */
+  private ScheduledFuture<?> backgroundRefresh;
+
+  /**
+   * Creates a session for the specified service, which saves its access token to the specified
+   * application-wide shared preferences. An access token saved to the legacy shared preferences
+   * is moved over.
+   */
+  public OAuthSession(OAuth20Service service, SharedPreferences preferences,
+                      SharedPreferences legacyPreferences, Network.OAuthDataProvider data) {
+    this.service = service;
+    this.preferences = preferences;
+    this.legacyPreferences = legacyPreferences;
+    this.data = data;
+  }
+
+  /**
+   * @return the service used to sign and make requests.
+   */
+  public OAuth20Service getService() {
+    return service;
+  }
+
+  /**
+   * Returns a valid access token, refreshing it first only if the background refresh didn't do so
+   * in time. Schedules the next background refresh, so that it stays valid while it is being used.
+   */
+  public OAuth2AccessToken getAccessToken()
+      throws IOException, InterruptedException, ExecutionException {
+    // Look for any saved access token once. If there is none, refresh using the initial refresh
+    // token. If there is one but it is expired, refresh using the saved refresh token.
+    AccessToken accessToken = getLoadedAccessToken();
+    if ((accessToken == null) || accessToken.shouldRefreshNow()) {
+      accessToken = refreshAccessToken(accessToken);
+    }
+
+    scheduleBackgroundRefresh(accessToken);
+    return accessToken;
+  }
+
+  /**
+   * Cancels the pending background refresh, if there is one. The next call to
+   * {@link #getAccessToken()} schedules it again.
+   */
+  public synchronized void cancelBackgroundRefresh() {
+    if (backgroundRefresh != null) {
+      Log.d(TAG, "Cancelling background refresh.");
+      backgroundRefresh.cancel(false);
+      backgroundRefresh = null;
+    }
+  }
+
+  /**
+   * Returns the current access token after loading it from shared preferences the first time.
+   */
+  private synchronized AccessToken getLoadedAccessToken() {
+    if (!loaded) {
+      accessToken = loadAccessToken();
+      loaded = true;
+    }
+    return accessToken;
+  }
+
+  /**
+   * Schedules a refresh in the background shortly before the specified access token is due,
+   * unless there already is one.
+   */
+  private synchronized void scheduleBackgroundRefresh(AccessToken accessToken) {
+    if ((backgroundRefresh != null) && !backgroundRefresh.isDone()) {
+      return;
+    }
+
+    long delaySeconds =
+        Math.max(accessToken.getSecondsUntilRefresh() - BACKGROUND_REFRESH_AHEAD_SECONDS, 0);
+    Log.d(TAG, String.format("Refreshing access token in the background in %d s.", delaySeconds));
+    backgroundRefresh = refreshExecutor.schedule(() -> {
+      try {
+        refreshAccessToken(accessToken);
+      } catch (IOException | InterruptedException | ExecutionException e) {
+        // The next request refreshes it instead.
+        Log.e(TAG, "Failed to refresh access token in the background.", e);
+      }
+    }, delaySeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Gets a new access token to replace the specified one and saves it. If another thread already
+   * replaced it in the meantime, returns that one instead.
+   */
+  private AccessToken refreshAccessToken(AccessToken staleAccessToken)
+      throws IOException, InterruptedException, ExecutionException {
+    synchronized (refreshLock) {
+      synchronized (this) {
+        if (accessToken != staleAccessToken) {
+          return accessToken;
+        }
+      }
+      Log.w(TAG, "Refreshing access token.");
+
+      // Figure out which refresh token to use.
+      String refreshToken;
+      if (staleAccessToken == null) {
+        Log.d(TAG, "Using initial refresh token.");
+        refreshToken = data.getRefreshToken();
+      } else {
+        Log.d(TAG, "Using saved refresh token.");
+        refreshToken = staleAccessToken.getRefreshToken();
+      }
+
+      // Get the new access token.
+      long refreshTime = System.currentTimeMillis() / 1000;
+      AccessToken accessToken =
+          new AccessToken(service.refreshAccessToken(refreshToken), refreshTime);
+      synchronized (this) {
+        this.accessToken = accessToken;
+      }
+
+      // Save it for next time.
+      saveAccessToken(accessToken, refreshTime);
+      return accessToken;
+    }
+  }
+
+  /**
+   * Loads an access token from shared preferences, moving it over from the legacy shared
+   * preferences if it is only saved there.
+   */
+  private AccessToken loadAccessToken() {
+    AccessToken accessToken = loadAccessToken(preferences);
+    if ((accessToken == null) && (legacyPreferences != null)) {
+      accessToken = loadAccessToken(legacyPreferences);
+      if (accessToken != null) {
+        Log.d(TAG, "Moving access token to application preferences.");
+        saveAccessToken(accessToken, accessToken.refreshTime);
+      }
+    }
+    return accessToken;
+  }
+
+  /**
+   * Loads an access token from the specified shared preferences.
+   */
+  private AccessToken loadAccessToken(SharedPreferences preferences) {
+    // Check if all keys are present.
+    String accessTokenKey = getScopedKey(KEY_ACCESS_TOKEN);
+    String refreshTokenKey = getScopedKey(KEY_REFRESH_TOKEN);
+    String expiresInKey = getScopedKey(KEY_EXPIRES_IN);
+    String refreshTimeKey = getScopedKey(KEY_REFRESH_TIME);
+    if (!preferences.contains(accessTokenKey) || !preferences.contains(refreshTokenKey)
+        || !preferences.contains(expiresInKey) || !preferences.contains(refreshTimeKey)) {
+      return null;
+    }
+
+    // Load the access token data from shared preferences.
+    String accessToken = preferences.getString(accessTokenKey, null);
+    String refreshToken = preferences.getString(refreshTokenKey, null);
+    int expiresIn = preferences.getInt(expiresInKey, 0);
+    long refreshTime = preferences.getLong(refreshTimeKey, 0);
+
+    // Create the access token from the data.
+    return new AccessToken(accessToken, expiresIn, refreshToken, refreshTime);
+  }
+
+  /**
+   * Saves an access token to shared preferences without blocking on the disk write.
+   */
+  private void saveAccessToken(AccessToken accessToken, long refreshTime) {
+    // Save the access token data to shared preferences.
+    SharedPreferences.Editor editor = preferences.edit();
+    editor.putString(getScopedKey(KEY_ACCESS_TOKEN), accessToken.getAccessToken());
+    editor.putString(getScopedKey(KEY_REFRESH_TOKEN), accessToken.getRefreshToken());
+    editor.putInt(getScopedKey(KEY_EXPIRES_IN), accessToken.getExpiresIn());
+    editor.putLong(getScopedKey(KEY_REFRESH_TIME), refreshTime);
+    editor.apply();
+  }
+
+  /**
+   * Creates a unique shared preferences key scoped to this service.
+   */
+  private String getScopedKey(String key) {
+    return data.getServiceId() + "_" + key;
+  }
+}
@@ -0,0 +1,30 @@
+package net.maxbraun.mirror;
+
+/**
+ * Thrown instead of making a request when the {@link RequestBudget} for its host is used up for
+ * now. Unlike a failed request, this says nothing about the host, so the update that made it
+ * should simply wait until there is budget again.
+ */
+public class OverBudgetException extends RuntimeException {
+
+  /**
+   * The time in milliseconds after which there may be budget again.
+   */
+  private final long retryAfterMillis;
+
+  /**
+   * Creates an exception for the specified host, which may have budget again after the specified
+   * time in milliseconds.
+   */
+  public OverBudgetException(String host, long retryAfterMillis) {
+    super("Request over budget: " + host);
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * @return the time in milliseconds after which there may be budget again.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,57 @@
+package net.maxbraun.mirror;
+
+import android.util.Log;
+
+/**
+ * A {@link DataUpdater} that updates whenever an {@link EventSource} signals that there is new data
+ * and only polls at a slow rate as a fallback.
+ */
+public abstract class PushDataUpdater<Data> extends DataUpdater<Data> {
+
+  /**
+   * The source of events signalling new data.
+   */
+  private final EventSource eventSource;
+
+  /**
+   * A source of events which signal that there is new data.
+   */
+  public interface EventSource {
+
+    /**
+     * Starts calling the specified listener on each event.
+     */
+    void subscribe(Runnable eventListener);
+
+    /**
+     * Stops calling the listener.
+     */
+    void unsubscribe();
+  }
+
+  /**
+   * When creating a new {@link PushDataUpdater}, provide a non-{@code null}
+   * {@link UpdateListener}, the {@link EventSource} and the fallback polling interval in
+   * milliseconds.
+   */
+  public PushDataUpdater(UpdateListener<Data> updateListener, EventSource eventSource,
+                         long fallbackIntervalMillis) {
+    super(updateListener, fallbackIntervalMillis);
+    this.eventSource = eventSource;
+  }
+
+  @Override
+  public void start() {
+    super.start();
+    eventSource.subscribe(() -> {
+      Log.d(getTag(), "Update pushed.");
+      updateNow();
+    });
+  }
+
+  @Override
+  public void stop() {
+    eventSource.unsubscribe();
+    super.stop();
+  }
+}
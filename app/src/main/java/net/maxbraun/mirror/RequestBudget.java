@@ -0,0 +1,174 @@
+package net.maxbraun.mirror;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Keeps track of the number of requests to an API over a rolling window of time, so that they stay
+ * within its quota. The counts are kept in buckets, which are persisted across restarts.
+ */
+public class RequestBudget {
+  private static final String TAG = RequestBudget.class.getSimpleName();
+
+  /**
+   * The name of the shared preferences file for all request budgets.
+   */
+  private static final String PREFERENCES_NAME = "request_budgets";
+
+  /**
+   * The number of buckets the rolling window is divided into.
+   */
+  private static final int BUCKET_COUNT = 24;
+
+  /**
+   * The fraction of the budget after which requests are paced, so that the rest of it lasts until
+   * older requests leave the window instead of being used up all at once.
+   */
+  private static final double PACING_THRESHOLD = 0.75;
+
+  /**
+   * The shared preferences used to persist the counts.
+   */
+  private final SharedPreferences preferences;
+
+  /**
+   * The shared preferences key for this budget.
+   */
+  private final String key;
+
+  /**
+   * The maximum number of requests within the window.
+   */
+  private final int maxRequests;
+
+  /**
+   * The duration of each bucket in milliseconds.
+   */
+  private final long bucketMillis;
+
+  /**
+   * The number of requests in each bucket, indexed by bucket number modulo {@link #BUCKET_COUNT}.
+   */
+  private final int[] bucketCounts = new int[BUCKET_COUNT];
+
+  /**
+   * The number of the current bucket, counted in bucket durations since the Unix epoch.
+   */
+  private long currentBucket;
+
+  /**
+   * Creates a budget of the specified number of requests in a rolling window of the specified
+   * duration in milliseconds and restores any counts saved under the same key.
+   */
+  public RequestBudget(Context context, String key, int maxRequests, long windowMillis) {
+    this.preferences = context.getApplicationContext()
+        .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.key = key;
+    this.maxRequests = maxRequests;
+    this.bucketMillis = Math.max(windowMillis / BUCKET_COUNT, 1);
+    load();
+  }
+
+  /**
+   * Records a request if there is budget left for it now. Extra attempts, i.e. retries and hedged
+   * requests, only get budget until requests are paced, so that the rest is left for first ones.
+   *
+   * @return whether the request may be made.
+   */
+  public synchronized boolean tryAcquire(boolean extraAttempt) {
+    advance(System.currentTimeMillis() / bucketMillis);
+
+    int usedRequests = 0;
+    for (int count : bucketCounts) {
+      usedRequests += count;
+    }
+    if (usedRequests >= maxRequests) {
+      Log.w(TAG, String.format("Quota for %s used up: %d/%d", key, usedRequests, maxRequests));
+      return false;
+    }
+
+    // Once most of the budget is used, allow no more than an even share per bucket.
+    int currentIndex = (int) (currentBucket % BUCKET_COUNT);
+    int bucketShare = Math.max(maxRequests / BUCKET_COUNT, 1);
+    boolean paced = usedRequests >= maxRequests * PACING_THRESHOLD;
+    if (paced && extraAttempt) {
+      Log.w(TAG, String.format("No budget for extra attempt at %s: %d/%d", key, usedRequests,
+          maxRequests));
+      return false;
+    }
+    if (paced && (bucketCounts[currentIndex] >= bucketShare)) {
+      Log.w(TAG, String.format("Pacing requests for %s: %d/%d", key, usedRequests, maxRequests));
+      return false;
+    }
+
+    bucketCounts[currentIndex]++;
+    save();
+    return true;
+  }
+
+  /**
+   * @return the time in milliseconds until the next bucket starts, which is when more budget may
+   *     become available.
+   */
+  public long getMillisUntilNextBucket() {
+    return bucketMillis - System.currentTimeMillis() % bucketMillis;
+  }
+
+  /**
+   * Moves the window forward to the specified bucket, clearing all buckets that fell out of it.
+   */
+  private void advance(long bucket) {
+    if (bucket <= currentBucket) {
+      return;
+    }
+
+    long clearCount = Math.min(bucket - currentBucket, BUCKET_COUNT);
+    for (long i = 1; i <= clearCount; i++) {
+      bucketCounts[(int) ((currentBucket + i) % BUCKET_COUNT)] = 0;
+    }
+    currentBucket = bucket;
+  }
+
+  /**
+   * Loads the counts from shared preferences in the format "bucket:count,count,...".
+   */
+  private void load() {
+    String saved = preferences.getString(key, null);
+    if (saved == null) {
+      return;
+    }
+
+    try {
+      String[] parts = saved.split(":");
+      String[] counts = parts[1].split(",");
+      if (counts.length != BUCKET_COUNT) {
+        return;
+      }
+      long bucket = Long.parseLong(parts[0]);
+      int[] bucketCounts = new int[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        bucketCounts[i] = Integer.parseInt(counts[i]);
+      }
+      currentBucket = bucket;
+      System.arraycopy(bucketCounts, 0, this.bucketCounts, 0, BUCKET_COUNT);
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      Log.e(TAG, "Failed to load request budget: " + saved, e);
+    }
+  }
+
+  /**
+   * Saves the counts to shared preferences without blocking on the disk write.
+   */
+  private void save() {
+    StringBuilder saved = new StringBuilder();
+    saved.append(currentBucket).append(':');
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (i > 0) {
+        saved.append(',');
+      }
+      saved.append(bucketCounts[i]);
+    }
+    preferences.edit().putString(key, saved.toString()).apply();
+  }
+}
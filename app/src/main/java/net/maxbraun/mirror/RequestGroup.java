@@ -0,0 +1,115 @@
+package net.maxbraun.mirror;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A group of independent network requests made in parallel, so that an update takes as long as the
+ * slowest request instead of all of them together. The results are awaited with a deadline shared
+ * by the whole group. Closing the group cancels any requests that are still running.
+ */
+public class RequestGroup implements AutoCloseable {
+  private static final String TAG = RequestGroup.class.getSimpleName();
+
+  /**
+   * The maximum number of threads used for parallel requests across all groups.
+   */
+  private static final int POOL_SIZE = 6;
+
+  /**
+   * The format of the request thread names, which helps with debugging.
+   */
+  private static final String THREAD_NAME_FORMAT = "request-%d";
+
+  /**
+   * The default time in milliseconds that all requests in a group may take together.
+   */
+  private static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * The thread pool for the requests. It is separate from the {@link UpdateScheduler} threads, so
+   * that the updaters waiting for requests can't take up all the threads the requests need.
+   */
+  private static final ThreadPoolExecutor requestExecutor =
+      UpdateScheduler.newDaemonPool(THREAD_NAME_FORMAT, POOL_SIZE, true);
+
+  /**
+   * The {@link SystemClock#elapsedRealtime()} time in milliseconds by which all requests should
+   * be done.
+   */
+  private final long deadlineMillis;
+
+  /**
+   * The requests in this group.
+   */
+  private final List<Future<?>> requests = new ArrayList<>();
+
+  /**
+   * Creates a group with the default deadline.
+   */
+  public RequestGroup() {
+    this(DEFAULT_DEADLINE_MILLIS);
+  }
+
+  /**
+   * Creates a group with a deadline the specified time in milliseconds from now.
+   */
+  public RequestGroup(long timeoutMillis) {
+    deadlineMillis = SystemClock.elapsedRealtime() + timeoutMillis;
+  }
+
+  /**
+   * Starts the specified request in the background.
+   */
+  public <T> Future<T> add(Callable<T> request) {
+    Future<T> future = requestExecutor.submit(request);
+    requests.add(future);
+    return future;
+  }
+
+  /**
+   * Waits for the specified request from this group until the shared deadline and returns its
+   * result or {@code null} if it failed or didn't finish in time. Rethrows an
+   * {@link OverBudgetException} from the request.
+   */
+  public <T> T await(Future<T> request) {
+    long timeoutMillis = Math.max(deadlineMillis - SystemClock.elapsedRealtime(), 0);
+    try {
+      return request.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      Log.w(TAG, "Request missed the deadline.");
+      request.cancel(true);
+      return null;
+    } catch (ExecutionException e) {
+      // Let the update know to wait for more budget instead of treating this as a failure.
+      if (e.getCause() instanceof OverBudgetException) {
+        throw (OverBudgetException) e.getCause();
+      }
+      Log.e(TAG, "Request failed.", e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      // Keep the interrupt for the update this group is part of.
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Cancels all requests in this group that are still running.
+   */
+  @Override
+  public void close() {
+    for (Future<?> request : requests) {
+      request.cancel(true);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package net.maxbraun.mirror;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How requests to an API are timed out and retried. Only idempotent requests are retried. Slow
+ * requests can optionally be hedged with a second one once they take longer than most previous
+ * requests did.
+ */
+public class RetryPolicy {
+
+  /**
+   * The delay in milliseconds before the first retry. It doubles with each further one.
+   */
+  private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /**
+   * The number of recent request latencies that the hedging delay is based on.
+   */
+  private static final int LATENCY_SAMPLE_COUNT = 20;
+
+  /**
+   * The minimum number of latencies needed before requests are hedged.
+   */
+  private static final int MIN_LATENCY_SAMPLE_COUNT = 5;
+
+  /**
+   * The percentile of the recent latencies after which a request is hedged.
+   */
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  /**
+   * The maximum number of attempts per request for APIs with small, fast responses.
+   */
+  private static final int FAST_MAX_ATTEMPTS = 3;
+
+  /**
+   * The connect timeout in milliseconds for APIs with small, fast responses.
+   */
+  private static final int FAST_CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+
+  /**
+   * The read timeout in milliseconds for APIs with small, fast responses.
+   */
+  private static final int FAST_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The maximum number of attempts per request, including the first one.
+   */
+  private final int maxAttempts;
+
+  /**
+   * The maximum time in milliseconds to wait for a connection to be established.
+   */
+  private final int connectTimeoutMillis;
+
+  /**
+   * The maximum time in milliseconds to wait for more data while reading a response.
+   */
+  private final int readTimeoutMillis;
+
+  /**
+   * Whether slow requests are hedged.
+   */
+  private final boolean hedged;
+
+  /**
+   * The recent latencies in milliseconds, used as a ring buffer.
+   */
+  private final long[] latencySamples = new long[LATENCY_SAMPLE_COUNT];
+
+  /**
+   * The total number of latencies recorded so far.
+   */
+  private int latencyCount;
+
+  /**
+   * Creates a policy with the specified maximum number of attempts and timeouts in milliseconds,
+   * which optionally hedges slow requests.
+   */
+  public RetryPolicy(int maxAttempts, int connectTimeoutMillis, int readTimeoutMillis,
+                     boolean hedged) {
+    this.maxAttempts = Math.max(maxAttempts, 1);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.hedged = hedged;
+  }
+
+  /**
+   * Creates a policy for APIs with small, fast responses and a quota that leaves room for extra
+   * requests, so slow ones are hedged. Each host needs its own instance, since the hedging delay
+   * is based on the latencies of its requests.
+   */
+  public static RetryPolicy newFastHedged() {
+    return new RetryPolicy(FAST_MAX_ATTEMPTS, FAST_CONNECT_TIMEOUT_MILLIS,
+        FAST_READ_TIMEOUT_MILLIS, true);
+  }
+
+  /**
+   * @return the maximum number of attempts per request, including the first one.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait for a connection to be established.
+   */
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  /**
+   * @return the maximum time in milliseconds to wait for more data while reading a response.
+   */
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  /**
+   * @return the delay in milliseconds before retrying after the specified failed attempt.
+   */
+  public long getRetryDelayMillis(int attempt) {
+    return INITIAL_RETRY_DELAY_MILLIS << Math.min(attempt - 1, 30);
+  }
+
+  /**
+   * Records the latency in milliseconds of a successful request.
+   */
+  public synchronized void recordLatency(long latencyMillis) {
+    latencySamples[latencyCount % LATENCY_SAMPLE_COUNT] = latencyMillis;
+    latencyCount++;
+  }
+
+  /**
+   * @return the time in milliseconds after which a request should be hedged with a second one or
+   *     {@code -1} if it shouldn't be, because hedging is disabled or there are too few latencies.
+   */
+  public synchronized long getHedgeDelayMillis() {
+    int sampleCount = Math.min(latencyCount, LATENCY_SAMPLE_COUNT);
+    if (!hedged || (sampleCount < MIN_LATENCY_SAMPLE_COUNT)) {
+      return -1;
+    }
+
+    long[] sortedSamples = Arrays.copyOf(latencySamples, sampleCount);
+    Arrays.sort(sortedSamples);
+    int index = (int) Math.ceil(HEDGE_PERCENTILE * sampleCount) - 1;
+    return sortedSamples[Math.max(index, 0)];
+  }
+}
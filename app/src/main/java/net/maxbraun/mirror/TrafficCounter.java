@@ -0,0 +1,72 @@
+package net.maxbraun.mirror;
+
+/**
+ * Counts the response bytes received from a host, both as transferred and after decompression, so
+ * that the savings from compression can be checked at runtime. Responses served from the local
+ * cache are counted separately, since they weren't transferred.
+ */
+public class TrafficCounter {
+
+  /**
+   * The host this counter is for.
+   */
+  private final String host;
+
+  /**
+   * The number of responses read from the network.
+   */
+  private long responseCount;
+
+  /**
+   * The number of bytes read as transferred, i.e. before decompression.
+   */
+  private long compressedBytes;
+
+  /**
+   * The number of bytes read after decompression.
+   */
+  private long decodedBytes;
+
+  /**
+   * The number of responses read from the local cache.
+   */
+  private long cacheHitCount;
+
+  /**
+   * The number of bytes read from the local cache.
+   */
+  private long cacheBytes;
+
+  /**
+   * Creates an empty counter for the specified host.
+   */
+  public TrafficCounter(String host) {
+    this.host = host;
+  }
+
+  /**
+   * Adds a response from the network with the specified numbers of bytes before and after
+   * decompression.
+   */
+  public synchronized void record(long compressedBytes, long decodedBytes) {
+    responseCount++;
+    this.compressedBytes += compressedBytes;
+    this.decodedBytes += decodedBytes;
+  }
+
+  /**
+   * Adds a response from the local cache with the specified number of bytes.
+   */
+  public synchronized void recordCacheHit(long bytes) {
+    cacheHitCount++;
+    cacheBytes += bytes;
+  }
+
+  /**
+   * Creates a one-line, human-readable summary of the counts.
+   */
+  public synchronized String getSummary() {
+    return String.format("%s: %d response(s), %d bytes (%d compressed), %d cache hit(s), %d bytes",
+        host, responseCount, decodedBytes, compressedBytes, cacheHitCount, cacheBytes);
+  }
+}
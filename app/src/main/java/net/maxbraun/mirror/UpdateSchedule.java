@@ -0,0 +1,233 @@
+package net.maxbraun.mirror;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The times of day during which a {@link DataUpdater} is active, as configured in the Firebase
+ * Database. Outside of these windows, updates are paused or less frequent.
+ */
+public class UpdateSchedule {
+
+  /**
+   * The path to the Firebase Database for the update schedules.
+   */
+  private static final String UPDATE_SCHEDULES_PATH = "update_schedules";
+
+  /**
+   * The child path under each schedule for the list of active windows.
+   */
+  private static final String SCHEDULE_WINDOWS = "windows";
+
+  /**
+   * The child path under each window for the start time as a "HH:mm" string.
+   */
+  private static final String WINDOW_START = "start";
+
+  /**
+   * The child path under each window for the end time as a "HH:mm" string.
+   */
+  private static final String WINDOW_END = "end";
+
+  /**
+   * The child path under each schedule for the update interval in minutes outside of the active
+   * windows. If it is missing or zero, updates are paused instead.
+   */
+  private static final String SCHEDULE_INACTIVE_INTERVAL = "inactive_interval_minutes";
+
+  /**
+   * The time in milliseconds before the start of an active window at which the data is refreshed,
+   * so that it is up to date once the window opens.
+   */
+  private static final long PREFETCH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * A window of time each day, in minutes since midnight. Windows may span midnight.
+   */
+  private static class Window {
+    final int startMinute;
+    final int endMinute;
+
+    Window(int startMinute, int endMinute) {
+      this.startMinute = startMinute;
+      this.endMinute = endMinute;
+    }
+
+    /**
+     * @return whether the specified minute of the day is within this window.
+     */
+    boolean contains(int minute) {
+      if (startMinute < endMinute) {
+        return (minute >= startMinute) && (minute < endMinute);
+      } else if (startMinute > endMinute) {
+        return (minute >= startMinute) || (minute < endMinute);
+      } else {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The tag used for logging.
+   */
+  private final String tag;
+
+  /**
+   * A reference to the Firebase Database with this schedule.
+   */
+  private final DatabaseReference scheduleSettings;
+
+  /**
+   * Called when the schedule changes.
+   */
+  private final Runnable changeListener;
+
+  /**
+   * The active windows. If there are none, the updater is always active.
+   */
+  private volatile List<Window> windows = Collections.emptyList();
+
+  /**
+   * The update interval in milliseconds outside of the active windows or {@code 0} if updates are
+   * paused.
+   */
+  private volatile long inactiveIntervalMillis;
+
+  /**
+   * The listener for Firebase Database schedule updates.
+   */
+  private final ValueEventListener scheduleSettingsListener = new ValueEventListener() {
+    @Override
+    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+      List<Window> windows = new ArrayList<>();
+      for (DataSnapshot windowSnapshot : dataSnapshot.child(SCHEDULE_WINDOWS).getChildren()) {
+        int startMinute = parseMinute(windowSnapshot.child(WINDOW_START).getValue(String.class));
+        int endMinute = parseMinute(windowSnapshot.child(WINDOW_END).getValue(String.class));
+        if ((startMinute < 0) || (endMinute < 0)) {
+          Log.w(tag, "Ignoring invalid schedule window: " + windowSnapshot.getValue());
+          continue;
+        }
+        windows.add(new Window(startMinute, endMinute));
+      }
+      Long inactiveIntervalMinutes =
+          dataSnapshot.child(SCHEDULE_INACTIVE_INTERVAL).getValue(Long.class);
+
+      Log.d(tag, "Using " + windows.size() + " schedule window(s).");
+      UpdateSchedule.this.windows = windows;
+      inactiveIntervalMillis = inactiveIntervalMinutes != null ?
+          TimeUnit.MINUTES.toMillis(inactiveIntervalMinutes) : 0;
+      changeListener.run();
+    }
+
+    @Override
+    public void onCancelled(@NonNull DatabaseError databaseError) {
+      Log.e(tag, "Failed to load update schedule.", databaseError.toException());
+    }
+  };
+
+  /**
+   * Creates a schedule read from the child of the update schedules path with the specified name.
+   * The change listener is called on the main thread.
+   */
+  public UpdateSchedule(String name, String tag, Runnable changeListener) {
+    this.tag = tag;
+    this.changeListener = changeListener;
+    scheduleSettings =
+        FirebaseDatabase.getInstance().getReference(UPDATE_SCHEDULES_PATH).child(name);
+  }
+
+  /**
+   * Starts listening for schedule changes.
+   */
+  public void start() {
+    scheduleSettings.addValueEventListener(scheduleSettingsListener);
+  }
+
+  /**
+   * Stops listening for schedule changes.
+   */
+  public void stop() {
+    scheduleSettings.removeEventListener(scheduleSettingsListener);
+  }
+
+  /**
+   * Adjusts the delay in milliseconds until the next update according to the schedule. Updates
+   * inside an active window are unchanged. Updates outside are postponed to the next window or
+   * stretched to the inactive interval, but happen no later than shortly before the next window.
+   */
+  public long adjustDelayMillis(long delayMillis) {
+    List<Window> windows = this.windows;
+    if (windows.isEmpty()) {
+      return delayMillis;
+    }
+
+    long nowMillis = System.currentTimeMillis();
+    long targetMillis = nowMillis + delayMillis;
+    Calendar target = Calendar.getInstance();
+    target.setTimeInMillis(targetMillis);
+    int targetMinute = target.get(Calendar.HOUR_OF_DAY) * 60 + target.get(Calendar.MINUTE);
+
+    // Find the next window start, unless the update is already inside a window.
+    long nextStartMillis = Long.MAX_VALUE;
+    for (Window window : windows) {
+      if (window.contains(targetMinute)) {
+        return delayMillis;
+      }
+
+      Calendar start = (Calendar) target.clone();
+      start.set(Calendar.HOUR_OF_DAY, window.startMinute / 60);
+      start.set(Calendar.MINUTE, window.startMinute % 60);
+      start.set(Calendar.SECOND, 0);
+      start.set(Calendar.MILLISECOND, 0);
+      if (start.getTimeInMillis() <= targetMillis) {
+        start.add(Calendar.DAY_OF_MONTH, 1);
+      }
+      nextStartMillis = Math.min(nextStartMillis, start.getTimeInMillis());
+    }
+
+    // Refresh shortly before the next window, or earlier if there is an inactive interval.
+    long adjustedMillis = Math.max(nextStartMillis - PREFETCH_MILLIS, targetMillis);
+    long inactiveIntervalMillis = this.inactiveIntervalMillis;
+    if (inactiveIntervalMillis > 0) {
+      adjustedMillis =
+          Math.min(adjustedMillis, nowMillis + Math.max(delayMillis, inactiveIntervalMillis));
+    }
+    return adjustedMillis - nowMillis;
+  }
+
+  /**
+   * Parses a "HH:mm" time into minutes since midnight or returns {@code -1} if it is invalid.
+   */
+  private static int parseMinute(String time) {
+    if (time == null) {
+      return -1;
+    }
+
+    String[] parts = time.trim().split(":");
+    if (parts.length != 2) {
+      return -1;
+    }
+    try {
+      int hours = Integer.parseInt(parts[0]);
+      int minutes = Integer.parseInt(parts[1]);
+      if ((hours < 0) || (hours > 23) || (minutes < 0) || (minutes > 59)) {
+        return -1;
+      }
+      return hours * 60 + minutes;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
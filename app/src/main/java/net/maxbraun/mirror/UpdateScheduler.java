@@ -0,0 +1,156 @@
+package net.maxbraun.mirror;
+
+import android.os.SystemClock;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process-wide scheduler shared by all {@link DataUpdater DataUpdaters}, so that the number of
+ * background threads stays the same no matter how many data sources there are.
+ */
+public abstract class UpdateScheduler {
+
+  /**
+   * The maximum number of threads used for all background updates.
+   */
+  private static final int POOL_SIZE = 2;
+
+  /**
+   * The format of the background thread names, which helps with debugging.
+   */
+  private static final String THREAD_NAME_FORMAT = "updater-%d";
+
+  /**
+   * The format of the fetch thread names, which helps with debugging.
+   */
+  private static final String FETCH_THREAD_NAME_FORMAT = "fetch-%d";
+
+  /**
+   * The time in milliseconds after which idle threads of the pools from
+   * {@link #newDaemonPool(String, int, boolean)} are ended. New ones are created as needed.
+   */
+  private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * The spacing in milliseconds of the common ticks that regular updates are aligned to. All update
+   * intervals are multiples of this.
+   */
+  private static final long ALIGNMENT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * The {@link ScheduledExecutorService} backed by the bounded thread pool.
+   */
+  private static final ScheduledExecutorService scheduledExecutor =
+      newDaemonScheduledPool(THREAD_NAME_FORMAT, POOL_SIZE);
+
+  /**
+   * The thread pool that {@link DataUpdater#getData()} runs on. It is separate from the update
+   * threads, so that an update can give up on a fetch that missed its deadline and free its thread
+   * right away. An abandoned fetch keeps its own thread until it notices the interrupt. The pool
+   * has no upper bound, so that such fetches can't hold up new ones.
+   */
+  private static final ListeningExecutorService fetchExecutor = MoreExecutors.listeningDecorator(
+      newDaemonPool(FETCH_THREAD_NAME_FORMAT, Integer.MAX_VALUE, false));
+
+  /**
+   * @return the shared {@link ScheduledExecutorService} for timing updates.
+   */
+  public static ScheduledExecutorService getScheduledExecutor() {
+    return scheduledExecutor;
+  }
+
+  /**
+   * @return the {@link ListeningExecutorService} for fetching data, which starts each fetch right
+   *     away.
+   */
+  static ListeningExecutorService getFetchExecutor() {
+    return fetchExecutor;
+  }
+
+  /**
+   * Schedules a task to run after the specified delay. If the delay is a multiple of the alignment
+   * spacing, the task is moved to the nearest common tick, so that tasks from different updaters
+   * run together in one burst and the device can stay idle in between. The ticks are based on
+   * {@link SystemClock#uptimeMillis()}, which, like the executor's own clock, stops in deep sleep.
+   */
+  public static ScheduledFuture<?> scheduleAligned(Runnable task, long delayMillis) {
+    if ((delayMillis > 0) && (delayMillis % ALIGNMENT_MILLIS == 0)) {
+      long nowMillis = SystemClock.uptimeMillis();
+      long targetMillis = nowMillis + delayMillis;
+      long alignedMillis =
+          ((targetMillis + ALIGNMENT_MILLIS / 2) / ALIGNMENT_MILLIS) * ALIGNMENT_MILLIS;
+      delayMillis = alignedMillis - nowMillis;
+    }
+
+    return scheduledExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the {@link SystemClock#uptimeMillis()} time in milliseconds of the next common tick.
+   */
+  static long getNextTickMillis() {
+    return (SystemClock.uptimeMillis() / ALIGNMENT_MILLIS + 1) * ALIGNMENT_MILLIS;
+  }
+
+  /**
+   * Creates a new {@link Executor} that runs tasks on the shared thread pool, but strictly one
+   * after the other and in the order they were submitted.
+   */
+  public static Executor newSequentialExecutor() {
+    return MoreExecutors.newSequentialExecutor(scheduledExecutor);
+  }
+
+  /**
+   * Creates a thread pool for scheduled tasks with the specified number of daemon threads, which
+   * don't keep the process alive. Cancelled tasks, and whatever they reference, are removed from
+   * its queue right away. The idle threads wait without waking up, since timing them out would
+   * wake them up after each keep-alive period instead.
+   */
+  static ScheduledThreadPoolExecutor newDaemonScheduledPool(String nameFormat, int poolSize) {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(poolSize, newDaemonThreadFactory(nameFormat));
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Creates a thread pool with up to the specified number of daemon threads, which don't keep the
+   * process alive and end once idle for a while. While all threads are busy, new tasks wait in a
+   * queue if {@code queued} is set. Otherwise, they are rejected with a
+   * {@link java.util.concurrent.RejectedExecutionException}.
+   */
+  static ThreadPoolExecutor newDaemonPool(String nameFormat, int maxPoolSize, boolean queued) {
+    if (queued) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize,
+          KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+          newDaemonThreadFactory(nameFormat));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+    return new ThreadPoolExecutor(0, maxPoolSize, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+        new SynchronousQueue<>(), newDaemonThreadFactory(nameFormat));
+  }
+
+  /**
+   * Creates a factory for daemon threads with names in the specified format, which helps with
+   * debugging.
+   */
+  private static ThreadFactory newDaemonThreadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder()
+        .setNameFormat(nameFormat)
+        .setDaemon(true)
+        .build();
+  }
+}
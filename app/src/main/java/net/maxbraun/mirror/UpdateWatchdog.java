@@ -0,0 +1,87 @@
+package net.maxbraun.mirror;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A helper class that regularly checks all running {@link DataUpdater DataUpdaters} and restarts
+ * those whose updates are overdue, e.g. because a request is stuck.
+ */
+public abstract class UpdateWatchdog {
+  private static final String TAG = UpdateWatchdog.class.getSimpleName();
+
+  /**
+   * The additional time in milliseconds beyond the deadline before an update is considered
+   * overdue. Covers the alignment of regular updates to common ticks.
+   */
+  private static final long OVERDUE_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * All running {@link DataUpdater DataUpdaters}.
+   */
+  private static final Set<DataUpdater<?>> updaters = new CopyOnWriteArraySet<>();
+
+  /**
+   * A {@link Handler} on the main thread, which runs the checks independently of the background
+   * threads that may be stuck.
+   */
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * The regularly repeated check. It runs on the common ticks of the {@link UpdateScheduler}, so
+   * that the device stays idle in between.
+   */
+  private static final Runnable checkTask = new Runnable() {
+    @Override
+    public void run() {
+      for (DataUpdater<?> updater : updaters) {
+        if (updater.isOverdue(OVERDUE_GRACE_MILLIS)) {
+          Log.e(TAG, "Updates are overdue: " + updater.getTag());
+          updater.restart();
+        }
+      }
+      mainHandler.postAtTime(this, UpdateScheduler.getNextTickMillis());
+    }
+  };
+
+  /**
+   * Starts watching the specified {@link DataUpdater}.
+   */
+  static void register(DataUpdater<?> updater) {
+    if (updaters.add(updater) && (updaters.size() == 1)) {
+      mainHandler.postAtTime(checkTask, UpdateScheduler.getNextTickMillis());
+    }
+  }
+
+  /**
+   * Stops watching the specified {@link DataUpdater}.
+   */
+  static void unregister(DataUpdater<?> updater) {
+    if (updaters.remove(updater) && updaters.isEmpty()) {
+      mainHandler.removeCallbacks(checkTask);
+    }
+  }
+
+  /**
+   * Creates a human-readable summary of the state of all running {@link DataUpdater DataUpdaters}
+   * with one line each.
+   */
+  public static String getHealthSummary() {
+    List<String> lines = new ArrayList<>();
+    for (DataUpdater<?> updater : updaters) {
+      lines.add(updater.getHealthSummary());
+    }
+    if (lines.isEmpty()) {
+      return "No updates running.";
+    }
+    return TextUtils.join("\n", lines);
+  }
+}
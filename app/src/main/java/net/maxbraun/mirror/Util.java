@@ -53,6 +53,15 @@ public class Util {
     Toast.makeText(context, ipAddress, Toast.LENGTH_LONG).show();
   }
 
+  /**
+   * Shows a {@link Toast} with the state of all running data updates and the response bytes read
+   * from each host. Useful for debugging when a part of the UI doesn't update.
+   */
+  public void showUpdaterHealth() {
+    String summary = UpdateWatchdog.getHealthSummary() + "\n" + Network.getTrafficSummary();
+    Toast.makeText(context, summary, Toast.LENGTH_LONG).show();
+  }
+
   /**
    * Uses some standard button presses for easy debugging.
    */
@@ -64,11 +73,29 @@ public class Util {
       case KeyEvent.KEYCODE_DPAD_UP:
         showIpAddress();
         return true;
+      case KeyEvent.KEYCODE_DPAD_RIGHT:
+        showUpdaterHealth();
+        return true;
       default:
         return false;
     }
   }
 
+  /**
+   * Gets the name of a drawable resource, which unlike the ID stays the same across builds.
+   */
+  public String getDrawableName(int drawableId) {
+    return context.getResources().getResourceEntryName(drawableId);
+  }
+
+  /**
+   * Gets the ID of a drawable resource by name or {@code 0} if there is none.
+   */
+  public int getDrawableId(String drawableName) {
+    return context.getResources().getIdentifier(drawableName, "drawable",
+        context.getPackageName());
+  }
+
   /**
    * Removes the period from the end of a sentence, if there is one.
    */
@@ -12,6 +12,8 @@ import org.json.JSONObject;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import net.maxbraun.mirror.Weather.WeatherData;
@@ -27,10 +29,20 @@ public class Weather extends DataUpdater<WeatherData> {
    */
   private static final long UPDATE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
 
+  /**
+   * The host for all AccuWeather API requests.
+   */
+  private static final String ACCU_WEATHER_HOST = "dataservice.accuweather.com";
+
   /**
    * The base URL for all AccuWeather API requests.
    */
-  private static final String ACCU_WEATHER_BASE_URL = "https://dataservice.accuweather.com";
+  private static final String ACCU_WEATHER_BASE_URL = "https://" + ACCU_WEATHER_HOST;
+
+  /**
+   * The maximum number of AccuWeather API requests per day, as per the free tier.
+   */
+  private static final int ACCU_WEATHER_DAILY_QUOTA = 50;
 
   /**
    * The size of the location key cache. Should be big enough to cover all typical locations.
@@ -42,6 +54,11 @@ public class Weather extends DataUpdater<WeatherData> {
    */
   private final Context context;
 
+  /**
+   * Used to look up icons by name for snapshots.
+   */
+  private final Util util;
+
   /**
    * A cache for the location key to avoid unnecessary API requests.
    */
@@ -105,12 +122,14 @@ public class Weather extends DataUpdater<WeatherData> {
     public final double currentTemperature;
 
     /**
-     * A human-readable summary of the 24-hour forecast.
+     * A human-readable summary of the 24-hour forecast or {@code null} while the forecast is still
+     * loading.
      */
     public final String forecastSummary;
 
     /**
-     * The average precipitation probability during the 24-hour forecast as a value between 0 and 1.
+     * The average precipitation probability during the 24-hour forecast as a value between 0 and 1
+     * or {@link Double#NaN} while the forecast is still loading.
      */
     public final double precipitationProbability;
 
@@ -126,11 +145,63 @@ public class Weather extends DataUpdater<WeatherData> {
       this.precipitationProbability = precipitationProbability;
       this.currentIcon = currentIcon;
     }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof WeatherData)) {
+        return false;
+      }
+      WeatherData data = (WeatherData) other;
+      return (Double.compare(currentTemperature, data.currentTemperature) == 0)
+          && Objects.equals(forecastSummary, data.forecastSummary)
+          && (Double.compare(precipitationProbability, data.precipitationProbability) == 0)
+          && (currentIcon == data.currentIcon);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(currentTemperature, forecastSummary, precipitationProbability,
+          currentIcon);
+    }
   }
 
   public Weather(Context context, UpdateListener<WeatherData> updateListener) {
     super(updateListener, UPDATE_INTERVAL_MILLIS);
+    setSkipUnchanged(true);
+    enableSnapshots(context);
+    enableSchedule("weather");
     this.context = context;
+    util = new Util(context);
+    Network.setRequestBudget(context, ACCU_WEATHER_HOST, ACCU_WEATHER_DAILY_QUOTA,
+        TimeUnit.DAYS.toMillis(1));
+  }
+
+  @Override
+  protected JSONObject toSnapshot(WeatherData data) throws JSONException {
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("currentTemperature", data.currentTemperature);
+    snapshot.put("forecastSummary", data.forecastSummary);
+    snapshot.put("precipitationProbability", data.precipitationProbability);
+    snapshot.put("currentIcon", util.getDrawableName(data.currentIcon));
+    return snapshot;
+  }
+
+  @Override
+  protected WeatherData fromSnapshot(JSONObject snapshot) throws JSONException {
+    int currentIcon = util.getDrawableId(snapshot.getString("currentIcon"));
+    if (currentIcon == 0) {
+      return null;
+    }
+
+    return new WeatherData(
+        snapshot.getDouble("currentTemperature"),
+        snapshot.getString("forecastSummary"),
+        snapshot.getDouble("precipitationProbability"),
+        currentIcon
+    );
   }
 
   @Override
@@ -140,19 +211,19 @@ public class Weather extends DataUpdater<WeatherData> {
     // Convert the location to a location key required by the API requests.
     String locationKey = getLocationKey(location);
 
-    // Get the latest data from the AccuWeather API.
-    try {
-      String currentRequestUrl = getCurrentRequestUrl(locationKey);
-      String forecastRequestUrl = getForecastRequestUrl(locationKey);
+    // Get the latest data from the AccuWeather API, making both requests in parallel.
+    String currentRequestUrl = getCurrentRequestUrl(locationKey);
+    String forecastRequestUrl = getForecastRequestUrl(locationKey);
+    try (RequestGroup requests = new RequestGroup()) {
+      Future<JSONArray> currentRequest =
+          requests.add(() -> Network.getJsonArray(currentRequestUrl));
+      Future<JSONObject> forecastRequest =
+          requests.add(() -> Network.getJsonObject(forecastRequestUrl));
 
-      JSONArray currentResponse = Network.getJsonArray(currentRequestUrl);
+      JSONArray currentResponse = requests.await(currentRequest);
       if (currentResponse == null) {
         return null;
       }
-      JSONObject forecastResponse = Network.getJsonObject(forecastRequestUrl);
-      if (forecastResponse == null) {
-        return null;
-      }
 
       // Parse the data we are interested in from the response JSON.
       double currentTemperature = currentResponse
@@ -160,6 +231,23 @@ public class Weather extends DataUpdater<WeatherData> {
           .getJSONObject("Temperature")
           .getJSONObject("Imperial")
           .getDouble("Value");
+      int currentIcon = currentResponse
+          .getJSONObject(0)
+          .getInt("WeatherIcon");
+
+      // Show the current conditions while the forecast is loading.
+      publishPartial(new WeatherData(
+          currentTemperature,
+          null,
+          Double.NaN,
+          iconResources.get(currentIcon)
+      ));
+
+      JSONObject forecastResponse = requests.await(forecastRequest);
+      if (forecastResponse == null) {
+        return null;
+      }
+
       String forecastSummary = forecastResponse
           .getJSONObject("Headline")
           .getString("Text");
@@ -175,9 +263,6 @@ public class Weather extends DataUpdater<WeatherData> {
           .getInt("PrecipitationProbability") / 100;
       double precipitationProbability =
           (dayPrecipitationProbability + nightPrecipitationProbability) / 2;
-      int currentIcon = currentResponse
-          .getJSONObject(0)
-          .getInt("WeatherIcon");
 
       return new WeatherData(
           currentTemperature,